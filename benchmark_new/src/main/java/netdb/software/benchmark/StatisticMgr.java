@@ -12,11 +12,23 @@ import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.JMX;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.vanilladb.core.storage.file.IoStats;
+import org.vanilladb.core.storage.file.IoStatsMXBean;
+
 public class StatisticMgr {
 	private static Logger logger = Logger.getLogger(StatisticMgr.class
 			.getName());
 
 	private static final String OUTPUT_DIR;
+	// the JMX service URL of the SUT, used to dump its I/O statistics
+	private static final String IO_STATS_JMX_URL;
 
 	private List<TxnResultSet> resultSets = new ArrayList<TxnResultSet>();
 
@@ -25,6 +37,9 @@ public class StatisticMgr {
 				+ ".OUTPUT_DIR");
 		OUTPUT_DIR = (prop == null ? System.getProperty("user.home") : prop
 				.trim());
+		prop = System.getProperty(StatisticMgr.class.getName()
+				+ ".IO_STATS_JMX_URL");
+		IO_STATS_JMX_URL = (prop == null ? "" : prop.trim());
 	}
 
 	/**
@@ -91,6 +106,14 @@ public class StatisticMgr {
 				}
 				bwrFile.newLine();
 			}
+
+			// output the I/O statistics of the server
+			if (!IO_STATS_JMX_URL.isEmpty()) {
+				bwrFile.newLine();
+				bwrFile.write("I/O statistics:");
+				bwrFile.newLine();
+				bwrFile.write(fetchIoStats());
+			}
 			bwrFile.close();
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -101,6 +124,30 @@ public class StatisticMgr {
 					+ new File(OUTPUT_DIR).getAbsolutePath() + "'");
 	}
 
+	private String fetchIoStats() {
+		JMXConnector connector = null;
+		try {
+			connector = JMXConnectorFactory.connect(new JMXServiceURL(
+					IO_STATS_JMX_URL));
+			MBeanServerConnection conn = connector.getMBeanServerConnection();
+			IoStatsMXBean ioStats = JMX.newMXBeanProxy(conn, new ObjectName(
+					IoStats.OBJECT_NAME), IoStatsMXBean.class);
+			return ioStats.report();
+		} catch (Exception e) {
+			if (logger.isLoggable(Level.WARNING))
+				logger.warning("cannot fetch I/O statistics from "
+						+ IO_STATS_JMX_URL + ": " + e);
+			return "unavailable";
+		} finally {
+			try {
+				if (connector != null)
+					connector.close();
+			} catch (IOException e) {
+				// do nothing
+			}
+		}
+	}
+
 	private static class TxnStatistic {
 		private TransactionType mType;
 		private int txnCount = 0;
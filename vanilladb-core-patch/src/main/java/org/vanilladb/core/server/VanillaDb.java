@@ -26,6 +26,8 @@ import org.vanilladb.core.storage.metadata.statistics.StatMgr;
 import org.vanilladb.core.storage.tx.Transaction;
 import org.vanilladb.core.storage.tx.TransactionMgr;
 import org.vanilladb.core.storage.tx.recovery.CheckpointTask;
+import org.vanilladb.core.storage.tx.recovery.FuzzyCheckpointTask;
+import org.vanilladb.core.storage.tx.recovery.ParallelRecovery;
 import org.vanilladb.core.storage.tx.recovery.RecoveryMgr;
 import org.vanilladb.core.util.Profiler;
 import org.vanilladb.core.util.PropertiesFetcher;
@@ -122,6 +124,12 @@ public class VanillaDb {
 		 * the index info (required for index logical recovery)
 		 */
 		boolean isDbNew = fileMgr.isNew();
+		ParallelRecovery recovery = null;
+		if (!isDbNew && ParallelRecovery.isEnabled()) {
+			// redo the data pages before the catalog pins any of them
+			recovery = new ParallelRecovery(initTx);
+			recovery.redo();
+		}
 		initCatalogMgr(isDbNew, initTx);
 		if (isDbNew) {
 			if (logger.isLoggable(Level.INFO))
@@ -130,7 +138,10 @@ public class VanillaDb {
 			if (logger.isLoggable(Level.INFO))
 				logger.info("recovering existing database");
 			// add a checkpoint record to limit rollback
-			RecoveryMgr.recover(initTx);
+			if (recovery != null)
+				recovery.undo();
+			else
+				RecoveryMgr.recover(initTx);
 			logMgr.removeAndCreateNewLog();
 		}
 
@@ -263,10 +274,16 @@ public class VanillaDb {
 	}
 
 	/**
-	 * Initialize a background checkpointing task.
+	 * Initialize a background checkpointing task. The checkpoints are
+	 * quiescent unless the property <code>FUZZY_CHECKPOINT</code> is true.
 	 */
 	public static void initCheckpointingTask() {
-		taskMgr.runTask(new CheckpointTask());
+		boolean isFuzzy = PropertiesFetcher.getPropertyAsBoolean(
+				VanillaDb.class.getName() + ".FUZZY_CHECKPOINT", false);
+		if (isFuzzy)
+			taskMgr.runTask(new FuzzyCheckpointTask());
+		else
+			taskMgr.runTask(new CheckpointTask());
 	}
 
 	public static FileMgr fileMgr() {
@@ -1,12 +1,15 @@
 package org.vanilladb.core.storage.buffer;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.vanilladb.core.server.VanillaDb;
 import org.vanilladb.core.storage.buffer.PageFormatter;
 import org.vanilladb.core.storage.file.BlockId;
 import org.vanilladb.core.storage.file.FileMgr;
+import org.vanilladb.core.storage.file.IoScheduler;
 
 /**
  * Manages the pinning and unpinning of buffers to blocks.
@@ -37,11 +40,71 @@ class BasicBufferMgr {
 	}
 
 	/**
-	 * Flushes all dirty buffers.
+	 * Flushes all dirty buffers. The writes are queued to the
+	 * {@link IoScheduler}, which orders and merges them, and the method returns
+	 * after all of them have completed.
+	 * 
+	 * @throws RuntimeException
+	 *             if some page cannot be written
 	 */
 	synchronized void flushAll() {
+		IoScheduler scheduler = VanillaDb.fileMgr().ioScheduler();
+		List<Buffer> submitted = new ArrayList<Buffer>();
+		for (Buffer buff : bufferPool)
+			if (buff.flushAsync(scheduler))
+				submitted.add(buff);
+		awaitWrites(scheduler, submitted);
+	}
+
+	/**
+	 * Flushes the buffers whose recovery LSN precedes the specified LSN,
+	 * without blocking the pinning of buffers meanwhile. The writes are queued
+	 * in batches of the specified number of pages, and the method pauses after
+	 * each batch completes, so that the flushing does not saturate the disk.
+	 * 
+	 * @param lsn
+	 *            the LSN before which the buffers are flushed
+	 * @param batchSize
+	 *            the number of pages written in each batch
+	 * @param pause
+	 *            the time in milliseconds to pause between the batches
+	 * @throws RuntimeException
+	 *             if some page cannot be written
+	 */
+	void flushGradually(long lsn, int batchSize, long pause) {
+		IoScheduler scheduler = VanillaDb.fileMgr().ioScheduler();
+		List<Buffer> submitted = new ArrayList<Buffer>();
+		// a buffer replaced meanwhile has been flushed by its replacement
+		for (Buffer buff : bufferPool) {
+			long recLsn = buff.recLsn();
+			if (recLsn < 0 || recLsn >= lsn || !buff.flushAsync(scheduler))
+				continue;
+			submitted.add(buff);
+			if (submitted.size() < batchSize)
+				continue;
+			awaitWrites(scheduler, submitted);
+			try {
+				Thread.sleep(pause);
+			} catch (InterruptedException e) {
+				throw new RuntimeException("interrupted while flushing buffers");
+			}
+		}
+		awaitWrites(scheduler, submitted);
+	}
+
+	/**
+	 * Returns the smallest recovery LSN of the buffers, which no log record of
+	 * a modification missing from the disk precedes. The buffers form the
+	 * dirty page table of a checkpoint.
+	 * 
+	 * @return the smallest recovery LSN, or -1 if every logged modification is
+	 *         on disk
+	 */
+	long minRecLsn() {
+		long min = -1;
 		for (Buffer buff : bufferPool)
-			buff.flush();
+			min = Buffer.minLsn(min, buff.recLsn());
+		return min;
 	}
 
 	/**
@@ -51,9 +114,26 @@ class BasicBufferMgr {
 	 *            the transaction's id number
 	 */
 	synchronized void flushAll(long txNum) {
+		IoScheduler scheduler = VanillaDb.fileMgr().ioScheduler();
+		List<Buffer> submitted = new ArrayList<Buffer>();
 		for (Buffer buff : bufferPool)
-			if (buff.isModifiedBy(txNum))
-				buff.flush();
+			if (buff.isModifiedBy(txNum) && buff.flushAsync(scheduler))
+				submitted.add(buff);
+		awaitWrites(scheduler, submitted);
+	}
+
+	/**
+	 * Waits for the queued writes of the specified buffers, and leaves the
+	 * buffers whose write has failed dirty.
+	 */
+	private void awaitWrites(IoScheduler scheduler, List<Buffer> submitted) {
+		try {
+			scheduler.awaitCompletion();
+		} finally {
+			for (Buffer buff : submitted)
+				buff.completeAsync(scheduler);
+			submitted.clear();
+		}
 	}
 	
 	/**
@@ -124,6 +204,25 @@ class BasicBufferMgr {
 		}
 	}
 
+	/**
+	 * Detaches the unpinned buffers from the blocks of the specified file,
+	 * without writing them. This is meant for a temporary file about to be
+	 * deleted.
+	 * 
+	 * @param fileName
+	 *            the name of the file
+	 */
+	synchronized void discard(String fileName) {
+		int fileId = FileMgr.fileId(fileName);
+		for (Buffer buff : bufferPool) {
+			BlockId blk = buff.block();
+			if (blk != null && blk.fileId() == fileId && !buff.isPinned()) {
+				blockMap.remove(blk);
+				buff.discard();
+			}
+		}
+	}
+
 	/**
 	 * Returns the number of available (i.e. unpinned) buffers.
 	 * 
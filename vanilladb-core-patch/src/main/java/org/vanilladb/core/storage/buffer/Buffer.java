@@ -7,7 +7,9 @@ import org.vanilladb.core.server.VanillaDb;
 import org.vanilladb.core.sql.Constant;
 import org.vanilladb.core.sql.Type;
 import org.vanilladb.core.storage.file.BlockId;
+import org.vanilladb.core.storage.file.IoScheduler;
 import org.vanilladb.core.storage.file.Page;
+import org.vanilladb.core.storage.log.LogMgr;
 
 /**
  * An individual buffer. A buffer wraps a page and stores information about its
@@ -22,8 +24,21 @@ public class Buffer {
 	private int pins = 0;
 	private boolean isNew = false;
 	private Set<Long> modifiedBy = new HashSet<Long>();
+	// the modifications queued to be written by flushAsync that have not
+	// been confirmed by completeAsync
+	private Set<Long> submittedBy = new HashSet<Long>();
+	private boolean isNewSubmitted;
 	// negative means no corresponding log record
 	private long maxLsn = -1;
+	// whether some modification has a log record buffered locally by its
+	// transaction, whose LSN is not known yet
+	private boolean hasLocalRecords;
+	// the LSN stamped on the page when it is written; every logged
+	// modification of the block up to this LSN is in the page
+	private long pageLsn;
+	// a bound on the LSNs of the logged modifications not on disk yet, and of
+	// those queued by flushAsync; negative if there is none
+	private long recLsn = -1, submittedRecLsn = -1;
 
 	/**
 	 * Creates a new buffer, wrapping a new {@link Page page}. This constructor
@@ -57,7 +72,8 @@ public class Buffer {
 	 * assumes that the transaction has already written an appropriate log
 	 * record. The buffer saves the id of the transaction and the LSN of the log
 	 * record. A negative lsn value indicates that a log record was not
-	 * necessary.
+	 * necessary, except {@link LogMgr#LOCAL_LSN}, which indicates that the
+	 * record is buffered locally by the transaction.
 	 * 
 	 * @param offset
 	 *            the byte offset within the page
@@ -71,8 +87,15 @@ public class Buffer {
 	public synchronized void setVal(int offset, Constant val, long txNum,
 			long lsn) {
 		modifiedBy.add(txNum);
-		if (lsn >= 0)
+		// concurrent transactions may modify the page out of LSN order
+		if (lsn > maxLsn)
 			maxLsn = lsn;
+		else if (lsn == LogMgr.LOCAL_LSN)
+			hasLocalRecords = true;
+		if (lsn >= 0)
+			recLsn = minLsn(recLsn, lsn);
+		else if (lsn == LogMgr.LOCAL_LSN)
+			recLsn = minLsn(recLsn, VanillaDb.logMgr().localLsnBound(txNum));
 		contents.setVal(offset, val);
 	}
 
@@ -92,11 +115,74 @@ public class Buffer {
 	 */
 	synchronized void flush() {
 		if (isNew || modifiedBy.size() > 0) {
+			mergeLocalRecords();
 			VanillaDb.logMgr().flush(maxLsn);
+			stampLsn();
 			contents.write(blk);
 			modifiedBy.clear();
 			isNew = false;
+			recLsn = -1;
+		}
+	}
+
+	/**
+	 * Queues the page to be written to its disk block by the specified
+	 * scheduler if the page is dirty. The corresponding log record is written
+	 * to disk first, as in {@link #flush()}. The caller must wait for the
+	 * scheduler to complete the write, and then call
+	 * {@link #completeAsync(IoScheduler)}, before assuming it is durable.
+	 * 
+	 * @param scheduler
+	 *            the I/O scheduler
+	 * @return true if the page was dirty
+	 */
+	synchronized boolean flushAsync(IoScheduler scheduler) {
+		if (isNew || modifiedBy.size() > 0) {
+			mergeLocalRecords();
+			VanillaDb.logMgr().flush(maxLsn);
+			stampLsn();
+			scheduler.submit(blk, contents);
+			submittedBy.addAll(modifiedBy);
+			isNewSubmitted |= isNew;
+			submittedRecLsn = minLsn(submittedRecLsn, recLsn);
+			modifiedBy.clear();
+			isNew = false;
+			recLsn = -1;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Confirms the write queued by {@link #flushAsync(IoScheduler)} once the
+	 * scheduler has completed it. If the write of the block has failed, the
+	 * buffer becomes dirty again, so that a later flush writes the block.
+	 * 
+	 * @param scheduler
+	 *            the I/O scheduler
+	 */
+	synchronized void completeAsync(IoScheduler scheduler) {
+		if (submittedBy.isEmpty() && !isNewSubmitted)
+			return;
+		if (scheduler.hasFailed(blk)) {
+			modifiedBy.addAll(submittedBy);
+			isNew |= isNewSubmitted;
+			recLsn = minLsn(recLsn, submittedRecLsn);
 		}
+		submittedBy.clear();
+		isNewSubmitted = false;
+		submittedRecLsn = -1;
+	}
+
+	/**
+	 * Returns the recovery LSN of the buffer, which no log record of a
+	 * modification missing from the disk block precedes. The modifications
+	 * whose writes are queued but not confirmed count as missing.
+	 * 
+	 * @return the recovery LSN, or -1 if no logged modification is missing
+	 */
+	synchronized long recLsn() {
+		return minLsn(recLsn, submittedRecLsn);
 	}
 
 	/**
@@ -111,6 +197,8 @@ public class Buffer {
 	 */
 	synchronized void unpin() {
 		pins--;
+		if (pins == 0 && maxLsn > pageLsn)
+			pageLsn = maxLsn;
 	}
 
 	/**
@@ -148,6 +236,7 @@ public class Buffer {
 		this.blk = blk;
 		// if (block().fileName().startsWith("idx_"))
 		contents.read(blk);
+		pageLsn = contents.getLsn();
 		pins = 0;
 	}
 
@@ -163,12 +252,73 @@ public class Buffer {
 	 */
 	synchronized void assignToNew(String fileName, PageFormatter fmtr) {
 		flush();
+		pageLsn = 0;
+		contents.setLsn(pageLsn);
 		fmtr.format(contents);
 		blk = contents.append(fileName);
 		pins = 0;
 		isNew = true;
 	}
 
+	/**
+	 * Detaches the buffer from its block without writing the page, dropping
+	 * its modifications. This is meant for the blocks of a deleted temporary
+	 * file.
+	 */
+	synchronized void discard() {
+		blk = null;
+		modifiedBy.clear();
+		submittedBy.clear();
+		isNew = false;
+		isNewSubmitted = false;
+		hasLocalRecords = false;
+		recLsn = -1;
+		submittedRecLsn = -1;
+	}
+
+	/**
+	 * Merges the log records buffered locally by the modifying transactions
+	 * into the log. Some of the records may have been merged earlier, when
+	 * the buffer did not know their LSNs, so the LSN of the buffer advances to
+	 * the end of the log. This covers every record of the page, and any
+	 * record at the end of the log not in the page yet belongs to a
+	 * transaction pinning the page, which holds back the page LSN.
+	 */
+	private void mergeLocalRecords() {
+		if (!hasLocalRecords)
+			return;
+		for (Long txNum : modifiedBy)
+			VanillaDb.logMgr().mergeLocal(txNum);
+		long lsn = VanillaDb.logMgr().endLsn();
+		if (lsn > maxLsn)
+			maxLsn = lsn;
+		hasLocalRecords = false;
+	}
+
+	/**
+	 * Stores the page LSN in the page header. A transaction modifies a page
+	 * only while pinning it, after appending its log record, so the records
+	 * appended by the pinning transactions may not be in the page yet. The
+	 * page LSN therefore advances to the LSN of the last modification only
+	 * when the buffer is not pinned.
+	 */
+	private void stampLsn() {
+		if (pins == 0 && maxLsn > pageLsn)
+			pageLsn = maxLsn;
+		contents.setLsn(pageLsn);
+	}
+
+	/**
+	 * Returns the smaller of two LSNs, where a negative one stands for none.
+	 */
+	static long minLsn(long lsn1, long lsn2) {
+		if (lsn1 < 0)
+			return lsn2;
+		if (lsn2 < 0)
+			return lsn1;
+		return Math.min(lsn1, lsn2);
+	}
+
 	protected synchronized void close() {
 		contents.close();
 	}
@@ -68,6 +68,30 @@ public interface BufferMgr extends TransactionStartListener,
 	 */
 	public void flushAll();
 
+	/**
+	 * Flushes the buffers whose recovery LSN precedes the specified LSN, in
+	 * batches of the specified number of pages with a pause between them.
+	 * Other transactions keep pinning and modifying buffers meanwhile.
+	 * 
+	 * @param lsn
+	 *            the LSN before which the buffers are flushed
+	 * @param batchSize
+	 *            the number of pages written in each batch
+	 * @param pause
+	 *            the time in milliseconds to pause between the batches
+	 */
+	public void flushGradually(long lsn, int batchSize, long pause);
+
+	/**
+	 * Returns the smallest recovery LSN of the buffers. A buffer has a
+	 * recovery LSN while some logged modification of its page is not on disk,
+	 * and no log record of such a modification precedes it.
+	 * 
+	 * @return the smallest recovery LSN, or -1 if every logged modification is
+	 *         on disk
+	 */
+	public long minRecLsn();
+
 	/**
 	 * Flushes the dirty buffers modified by the specified transaction.
 	 * 
@@ -2,9 +2,11 @@ package org.vanilladb.core.storage.buffer;
 
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -29,7 +31,8 @@ import org.vanilladb.core.util.PropertiesFetcher;
  * all currently holding blocks by the calling transaction. Buffer manager
  * implements {@link TransactionStartListener} and
  * {@link TransactionLifecycleListener} for the purpose of unpinning buffers
- * when transaction commit/rollback/recovery.
+ * when transaction commit/rollback/recovery. The temporary files created by a
+ * transaction are deleted when it ends.
  * 
  * <p>
  * A block must be pinned first before its getters/setters can be called.
@@ -40,11 +43,18 @@ public class BufferMgrImpl implements BufferMgr {
 	private static Logger logger = Logger.getLogger(BufferMgrImpl.class
 			.getName());
 	protected static final int BUFFER_POOL_SIZE;
+	/**
+	 * Whether a transaction writes the buffers it modified to disk when it
+	 * commits. Without the force, the committed modifications not on disk are
+	 * redone from the log by recovery.
+	 */
+	public static final boolean FORCE_ON_COMMIT;
 	private static final long MAX_TIME;
 	private static final long EPSILON;
 
 	private BasicBufferMgr bufferMgr;
 	private Map<Long, Map<BlockId, Buffer>> pinnedByMap;
+	private Map<Long, Set<String>> tempFilesByTx = new ConcurrentHashMap<Long, Set<String>>();
 	private List<Thread> waitingThreads;
 
 	static {
@@ -54,6 +64,8 @@ public class BufferMgrImpl implements BufferMgr {
 				BufferMgr.class.getName() + ".EPSILON", 50);
 		BUFFER_POOL_SIZE = PropertiesFetcher.getPropertyAsInteger(
 				BufferMgr.class.getName() + ".BUFFER_POOL_SIZE", 1024);
+		FORCE_ON_COMMIT = PropertiesFetcher.getPropertyAsBoolean(
+				BufferMgr.class.getName() + ".FORCE_ON_COMMIT", true);
 	}
 
 	/**
@@ -78,13 +90,16 @@ public class BufferMgrImpl implements BufferMgr {
 
 	@Override
 	public void onTxCommit(Transaction tx) {
-		flushAll(); // force
+		if (FORCE_ON_COMMIT)
+			flushAll(tx.getTransactionNumber());
 		unpinAll(tx);
+		deleteTempFiles(tx);
 	}
 
 	@Override
 	public void onTxRollback(Transaction tx) {
 		unpinAll(tx);
+		deleteTempFiles(tx);
 	}
 
 	@Override
@@ -195,6 +210,14 @@ public class BufferMgrImpl implements BufferMgr {
 					pinnedByMap.put(txNum, bufferMap);
 				}
 				bufferMap.put(buff.block(), buff);
+				if (fileName.startsWith(FileMgr.TMP_FILE_NAME_PREFIX)) {
+					Set<String> tempFiles = tempFilesByTx.get(txNum);
+					if (tempFiles == null) {
+						tempFiles = new HashSet<String>();
+						tempFilesByTx.put(txNum, tempFiles);
+					}
+					tempFiles.add(fileName);
+				}
 			}
 			return buff;
 		} catch (InterruptedException e) {
@@ -229,6 +252,33 @@ public class BufferMgrImpl implements BufferMgr {
 		bufferMgr.flushAll();
 	}
 
+	/**
+	 * Flushes the buffers whose recovery LSN precedes the specified LSN, in
+	 * batches of the specified number of pages with a pause between them.
+	 * 
+	 * @param lsn
+	 *            the LSN before which the buffers are flushed
+	 * @param batchSize
+	 *            the number of pages written in each batch
+	 * @param pause
+	 *            the time in milliseconds to pause between the batches
+	 * @throws RuntimeException
+	 *             if some page cannot be written
+	 */
+	public void flushGradually(long lsn, int batchSize, long pause) {
+		bufferMgr.flushGradually(lsn, batchSize, pause);
+	}
+
+	/**
+	 * Returns the smallest recovery LSN of the buffers.
+	 * 
+	 * @return the smallest recovery LSN, or -1 if every logged modification is
+	 *         on disk
+	 */
+	public long minRecLsn() {
+		return bufferMgr.minRecLsn();
+	}
+
 	/**
 	 * Flushes the dirty buffers modified by the specified transaction.
 	 * 
@@ -262,6 +312,20 @@ public class BufferMgrImpl implements BufferMgr {
 		}
 	}
 
+	/**
+	 * Deletes the temporary files created by the specified transaction, which
+	 * no one else can read, together with their blocks in the buffer pool.
+	 */
+	private void deleteTempFiles(Transaction tx) {
+		Set<String> tempFiles = tempFilesByTx.remove(tx.getTransactionNumber());
+		if (tempFiles == null)
+			return;
+		for (String fileName : tempFiles) {
+			bufferMgr.discard(fileName);
+			VanillaDb.fileMgr().deleteTempFile(fileName);
+		}
+	}
+
 	/**
 	 * Unpins all currently pinned buffers of the calling transaction and repins
 	 * them.
@@ -1,15 +1,19 @@
 package org.vanilladb.core.storage.file;
 
 /**
- * A reference to a disk block. A BlockId object consists of a fileName and a
- * block number. It does not hold the contents of the block; instead, that is
- * the job of a {@link Page} object.
+ * A reference to a disk block. A BlockId object consists of a file and a block
+ * number. It does not hold the contents of the block; instead, that is the job
+ * of a {@link Page} object.
+ * 
+ * <p>
+ * The file is identified by the integer ID assigned by
+ * {@link FileMgr#fileId(String)}, so that block IDs can be compared and hashed
+ * without touching the file name.
+ * </p>
  */
 public class BlockId {
-	private String fileName;
+	private int fileId;
 	private long blkNum;
-	private String string;
-	private int hashcode;
 
 	/**
 	 * Constructs a block ID for the specified fileName and block number.
@@ -20,10 +24,20 @@ public class BlockId {
 	 *            the block number
 	 */
 	public BlockId(String fileName, long blkNum) {
-		this.fileName = fileName;
+		this(FileMgr.fileId(fileName), blkNum);
+	}
+
+	/**
+	 * Constructs a block ID for the specified file ID and block number.
+	 * 
+	 * @param fileId
+	 *            the ID of the file
+	 * @param blkNum
+	 *            the block number
+	 */
+	public BlockId(int fileId, long blkNum) {
+		this.fileId = fileId;
 		this.blkNum = blkNum;
-		string = "[file " + fileName + ", block " + blkNum + "]";
-		hashcode = string.hashCode();
 	}
 
 	/**
@@ -32,7 +46,16 @@ public class BlockId {
 	 * @return the fileName
 	 */
 	public String fileName() {
-		return fileName;
+		return FileMgr.fileName(fileId);
+	}
+
+	/**
+	 * Returns the ID of the file where the block lives.
+	 * 
+	 * @return the file ID
+	 */
+	public int fileId() {
+		return fileId;
 	}
 
 	/**
@@ -50,14 +73,14 @@ public class BlockId {
 		if (obj == null || !(obj.getClass().equals(BlockId.class)))
 			return false;
 		BlockId blk = (BlockId) obj;
-		return fileName.equals(blk.fileName) && blkNum == blk.blkNum;
+		return fileId == blk.fileId && blkNum == blk.blkNum;
 	}
 
 	public String toString() {
-		return string;
+		return "[file " + fileName() + ", block " + blkNum + "]";
 	}
 
 	public int hashCode() {
-		return hashcode;
+		return 31 * fileId + (int) (blkNum ^ (blkNum >>> 32));
 	}
 }
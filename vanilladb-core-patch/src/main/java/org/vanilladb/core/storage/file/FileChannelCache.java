@@ -0,0 +1,167 @@
+package org.vanilladb.core.storage.file;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.vanilladb.core.storage.file.io.IoChannel;
+
+/**
+ * A bounded cache of open file channels. Channels are kept in LRU order and
+ * reference counted, so that a channel is closed on eviction only if no one is
+ * using it. If all cached channels are in use, the cache may temporarily hold
+ * more channels than its capacity.
+ */
+abstract class FileChannelCache {
+	private static Logger logger = Logger.getLogger(FileChannelCache.class
+			.getName());
+
+	private static class Entry {
+		IoChannel channel;
+		int refs;
+
+		Entry(IoChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	private final int capacity;
+	private final Map<String, Entry> entries;
+	private long opens, evictions;
+
+	/**
+	 * Creates a cache that keeps at most the specified number of idle
+	 * channels open.
+	 * 
+	 * @param capacity
+	 *            the maximum number of open channels
+	 */
+	FileChannelCache(int capacity) {
+		this.capacity = capacity;
+		// access-ordered, so the eldest entry is the least recently used one
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	}
+
+	/**
+	 * Opens the channel for the specified file. This method is called when the
+	 * file is not in the cache.
+	 * 
+	 * @param fileName
+	 *            the name of the file
+	 * @return a newly opened channel
+	 * @throws IOException
+	 */
+	abstract IoChannel open(String fileName) throws IOException;
+
+	/**
+	 * Returns the channel of the specified file and increases its reference
+	 * count. Every call must be paired with a call to {@link #release(String)}.
+	 * 
+	 * @param fileName
+	 *            the name of the file
+	 * @return the open channel
+	 * @throws IOException
+	 */
+	synchronized IoChannel acquire(String fileName) throws IOException {
+		Entry entry = entries.get(fileName);
+		if (entry == null) {
+			entry = new Entry(open(fileName));
+			entries.put(fileName, entry);
+			opens++;
+		}
+		entry.refs++;
+		if (entries.size() > capacity)
+			evictIdle();
+		return entry.channel;
+	}
+
+	/**
+	 * Decreases the reference count of the channel of the specified file.
+	 * 
+	 * @param fileName
+	 *            the name of the file
+	 */
+	synchronized void release(String fileName) {
+		Entry entry = entries.get(fileName);
+		if (entry != null && --entry.refs == 0)
+			notifyAll();
+		if (entries.size() > capacity)
+			evictIdle();
+	}
+
+	/**
+	 * Removes the channel of the specified file from the cache and closes it,
+	 * once the threads using it have released it.
+	 * 
+	 * @param fileName
+	 *            the name of the file
+	 * @throws IOException
+	 */
+	synchronized void remove(String fileName) throws IOException {
+		Entry entry = entries.get(fileName);
+		if (entry == null)
+			return;
+		try {
+			while (entry.refs > 0)
+				wait();
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted while closing " + fileName);
+		}
+		// another thread may have closed it meanwhile
+		if (entries.get(fileName) != entry)
+			return;
+		entries.remove(fileName);
+		entry.channel.close();
+	}
+
+	/**
+	 * Returns the number of currently open channels.
+	 * 
+	 * @return the number of open channels
+	 */
+	synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns the number of channels opened since the cache was created.
+	 * 
+	 * @return the number of channel opens
+	 */
+	synchronized long openCount() {
+		return opens;
+	}
+
+	/**
+	 * Returns the number of channels closed due to eviction.
+	 * 
+	 * @return the number of evictions
+	 */
+	synchronized long evictionCount() {
+		return evictions;
+	}
+
+	private void evictIdle() {
+		Iterator<Map.Entry<String, Entry>> iter = entries.entrySet()
+				.iterator();
+		while (entries.size() > capacity && iter.hasNext()) {
+			Map.Entry<String, Entry> eldest = iter.next();
+			if (eldest.getValue().refs > 0)
+				continue;
+			iter.remove();
+			evictions++;
+			try {
+				eldest.getValue().channel.close();
+			} catch (IOException e) {
+				if (logger.isLoggable(Level.WARNING))
+					logger.warning("cannot close evicted file "
+							+ eldest.getKey());
+			}
+			if (logger.isLoggable(Level.FINE))
+				logger.fine("evicted file channel " + eldest.getKey());
+		}
+	}
+}
@@ -1,19 +1,35 @@
 package org.vanilladb.core.storage.file;
 
-import static org.vanilladb.core.storage.file.Page.BLOCK_SIZE;
+import static org.vanilladb.core.storage.file.Page.DISK_BLOCK_SIZE;
 import static org.vanilladb.core.storage.log.LogMgr.LOG_FILE;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.vanilladb.core.server.VanillaDb;
 import org.vanilladb.core.storage.file.io.IoAllocator;
 import org.vanilladb.core.storage.file.io.IoBuffer;
 import org.vanilladb.core.storage.file.io.IoChannel;
+import org.vanilladb.core.storage.file.io.compression.CompressedIoChannel;
+import org.vanilladb.core.storage.file.io.memory.MemoryIoChannel;
 import org.vanilladb.core.util.PropertiesFetcher;
 
 /**
@@ -27,6 +43,15 @@ import org.vanilladb.core.util.PropertiesFetcher;
  * {@link #isNew() isNew} is called during system initialization by
  * {@link VanillaDb#init}. Method {@link #size(String) size} is called by the
  * log manager and transaction manager to determine the end of the file.
+ * 
+ * <p>
+ * I/O is not serialized across files. Reads and writes of blocks share the
+ * {@link IoChannel#getReadWriteLock() lock} of the file's channel, as the
+ * channels serve positional requests concurrently, while appending and
+ * preallocating, which must see the current size of the file, hold it
+ * exclusively. The monitor of the file manager only orders the operations
+ * that rename or delete files.
+ * </p>
  */
 
 public class FileMgr {
@@ -34,10 +59,83 @@ public class FileMgr {
 
 	public static final String HOME_DIR, LOG_FILE_BASE_DIR;
 	public static final String TMP_FILE_NAME_PREFIX = "_temp";
+	/**
+	 * The name of the file in the database directory that records the
+	 * on-disk format of the database.
+	 */
+	public static final String FORMAT_FILE = "vanilladb.format";
+	/**
+	 * The version of the on-disk format, raised whenever the layout of the
+	 * files changes. Version 1 prefixes each block with the page header of
+	 * {@link Page}.
+	 */
+	public static final int FORMAT_VERSION = 1;
+	/**
+	 * The maximum number of file channels kept open at the same time.
+	 */
+	public static final int MAX_OPEN_FILES;
+
+	/**
+	 * The policies of placing database files across the data directories.
+	 */
+	public static final int PLACEMENT_HASH = 0, PLACEMENT_ROUND_ROBIN = 1,
+			PLACEMENT_TABLE_MAPPING = 2;
+	/**
+	 * The parent directories of database files other than {@link #HOME_DIR}.
+	 * Each of them is expected to be on a separate device.
+	 */
+	public static final String[] DATA_DIRS;
+	public static final int FILE_PLACEMENT;
+	/**
+	 * The mapping from table (or index) names to the indices of data
+	 * directories, written as "name:index" pairs. Index 0 refers to
+	 * {@link #HOME_DIR}.
+	 */
+	public static final String[] TABLE_DIR_MAPPING;
+	/**
+	 * Whether the temporary files are kept in memory, and the number of bytes
+	 * they may take before spilling to disk.
+	 */
+	public static final boolean TEMP_FILES_IN_MEMORY;
+	public static final long TEMP_FILES_MEMORY_BUDGET;
+	/**
+	 * Whether all files, including the log, are kept in memory only. The
+	 * database is recreated on every start. This is intended for benchmarks
+	 * that exclude the cost of disk I/O.
+	 */
+	public static final boolean IN_MEMORY_DB;
+	/**
+	 * Whether the per-file I/O statistics are collected. They are also
+	 * registered to the platform MBean server as {@link IoStats#OBJECT_NAME}.
+	 */
+	public static final boolean COLLECT_IO_STATS;
+	/**
+	 * The names, or suffixes of names, of the files stored compressed, e.g.
+	 * "item.tbl" for a single cold table or ".tbl" for all tables. Only files
+	 * created while listed are compressed; a compressed file stays so.
+	 */
+	public static final String[] COMPRESSED_FILES;
+
+	// the registry of file IDs, shared by all block IDs
+	private static final Map<String, Integer> fileIds = new ConcurrentHashMap<String, Integer>();
+	private static volatile String[] fileNames = new String[64];
+	private static int numFileIds;
+	// the IDs released by deleted temporary files, reused before new ones
+	private static final Deque<Integer> freeFileIds = new ArrayDeque<Integer>();
+
+	private static final Charset FORMAT_CHARSET = Charset.forName("US-ASCII");
 
 	private File dbDirectory, logDirectory;
+	private File[] dataDirectories;
+	private Map<String, Integer> tableDirs = new HashMap<String, Integer>();
+	private AtomicInteger nextDir = new AtomicInteger();
+	private Map<String, IoChannel> memoryFiles = new ConcurrentHashMap<String, IoChannel>();
+	private AtomicLong tempMemoryBudget = new AtomicLong(
+			TEMP_FILES_MEMORY_BUDGET);
 	private boolean isNew;
-	private Map<String, IoChannel> openFiles = new ConcurrentHashMap<String, IoChannel>();
+	private FileChannelCache openFiles;
+	private IoScheduler ioScheduler;
+	private IoStats ioStats = new IoStats();
 
 	static {
 		HOME_DIR = PropertiesFetcher.getPropertyAsString(
@@ -45,27 +143,137 @@ public class FileMgr {
 				System.getProperty("user.home"));
 		LOG_FILE_BASE_DIR = PropertiesFetcher.getPropertyAsString(
 				FileMgr.class.getName() + ".LOG_FILE_BASE_DIR", HOME_DIR);
+		MAX_OPEN_FILES = PropertiesFetcher.getPropertyAsInteger(
+				FileMgr.class.getName() + ".MAX_OPEN_FILES", 512);
+		DATA_DIRS = PropertiesFetcher.getPropertyAsStringArray(
+				FileMgr.class.getName() + ".DATA_DIRS", new String[0]);
+		FILE_PLACEMENT = PropertiesFetcher.getPropertyAsInteger(
+				FileMgr.class.getName() + ".FILE_PLACEMENT", PLACEMENT_HASH);
+		TABLE_DIR_MAPPING = PropertiesFetcher.getPropertyAsStringArray(
+				FileMgr.class.getName() + ".TABLE_DIR_MAPPING", new String[0]);
+		TEMP_FILES_IN_MEMORY = PropertiesFetcher.getPropertyAsBoolean(
+				FileMgr.class.getName() + ".TEMP_FILES_IN_MEMORY", true);
+		TEMP_FILES_MEMORY_BUDGET = PropertiesFetcher.getPropertyAsLong(
+				FileMgr.class.getName() + ".TEMP_FILES_MEMORY_BUDGET",
+				64 * 1024 * 1024);
+		IN_MEMORY_DB = PropertiesFetcher.getPropertyAsBoolean(
+				FileMgr.class.getName() + ".IN_MEMORY_DB", false);
+		COLLECT_IO_STATS = PropertiesFetcher.getPropertyAsBoolean(
+				FileMgr.class.getName() + ".COLLECT_IO_STATS", true);
+		COMPRESSED_FILES = PropertiesFetcher.getPropertyAsStringArray(
+				FileMgr.class.getName() + ".COMPRESSED_FILES", new String[0]);
+	}
+
+	/**
+	 * Returns the ID of the specified file. An ID is assigned to each file
+	 * name the first time it is seen, and stays the same for the lifetime of
+	 * the JVM, even if the file is deleted. Only the IDs of temporary files
+	 * are released, when the files are deleted by
+	 * {@link #deleteTempFile(String)}, and may then be assigned to other
+	 * files.
+	 * 
+	 * @param fileName
+	 *            the name of the file
+	 * @return the ID of the file
+	 */
+	public static int fileId(String fileName) {
+		Integer id = fileIds.get(fileName);
+		if (id != null)
+			return id;
+		synchronized (fileIds) {
+			id = fileIds.get(fileName);
+			if (id == null) {
+				id = freeFileIds.poll();
+				if (id == null) {
+					if (numFileIds == fileNames.length)
+						fileNames = Arrays.copyOf(fileNames, numFileIds * 2);
+					id = numFileIds++;
+				}
+				fileNames[id] = fileName;
+				// publishes the name stored above
+				fileIds.put(fileName, id);
+			}
+			return id;
+		}
+	}
+
+	/**
+	 * Returns the name of the file with the specified ID.
+	 * 
+	 * @param fileId
+	 *            an ID returned by {@link #fileId(String)}
+	 * @return the name of the file
+	 */
+	public static String fileName(int fileId) {
+		return fileNames[fileId];
+	}
+
+	/**
+	 * Releases the ID of the specified file, so that the registry does not
+	 * grow with every temporary file a long-running server creates. No block
+	 * ID of the file may be used afterwards.
+	 * 
+	 * @param fileName
+	 *            the name of the file
+	 */
+	private static void releaseFileId(String fileName) {
+		synchronized (fileIds) {
+			Integer id = fileIds.remove(fileName);
+			if (id != null) {
+				fileNames[id] = null;
+				freeFileIds.push(id);
+			}
+		}
 	}
 
 	/**
 	 * Creates a file manager for the specified database. The database will be
 	 * stored in a folder of that name in the user's home directory. If the
 	 * folder does not exist, then a folder containing an empty database is
-	 * created automatically. Files for all temporary tables (i.e. tables
-	 * beginning with "_temp") will be deleted during initializing.
+	 * created automatically. If {@link #DATA_DIRS} are specified, a folder of
+	 * that name is also created in each of them, and the database files are
+	 * spread across all these folders according to {@link #FILE_PLACEMENT}.
+	 * Files for all temporary tables (i.e. tables beginning with "_temp") will
+	 * be deleted during initializing. A new database is stamped with its
+	 * on-disk format in {@link #FORMAT_FILE}, and an existing one whose stamp
+	 * is missing or different is refused.
 	 * 
 	 * @param dbName
 	 *            the name of the directory that holds the database
 	 */
 	public FileMgr(String dbName) {
 		dbDirectory = new File(HOME_DIR, dbName);
+		dataDirectories = new File[DATA_DIRS.length + 1];
+		dataDirectories[0] = dbDirectory;
+		for (int i = 0; i < DATA_DIRS.length; i++)
+			dataDirectories[i + 1] = new File(DATA_DIRS[i].trim(), dbName);
+		for (String mapping : TABLE_DIR_MAPPING)
+			mapTableDir(mapping);
 
 		// the log file can be specified to be stored in different location
 		logDirectory = new File(LOG_FILE_BASE_DIR, dbName);
-		isNew = !dbDirectory.exists();
+		isNew = IN_MEMORY_DB || !dbDirectory.exists();
+
+		openFiles = new FileChannelCache(MAX_OPEN_FILES) {
+			@Override
+			IoChannel open(String fileName) throws IOException {
+				if (isLogFile(fileName))
+					return IoAllocator.newIoChannel(new File(logDirectory,
+							fileName));
+				File dbFile = locateFile(fileName);
+				if (isCompressed(fileName, dbFile))
+					return new CompressedIoChannel(dbFile, DISK_BLOCK_SIZE);
+				return IoAllocator.newIoChannel(dbFile);
+			}
+		};
 
-		// deal with the log folder in new database
-		if (isNew && !dbDirectory.equals(logDirectory)) {
+		ioScheduler = new IoScheduler(this);
+		if (COLLECT_IO_STATS)
+			registerIoStats();
+
+		// deal with the log folder in new database; an in-memory database
+		// leaves the one on disk alone
+		if (!IN_MEMORY_DB && isNew && !dbDirectory.equals(logDirectory)) {
 			// delete the old log file if db is new
 			if (logDirectory.exists()) {
 				deleteLogFiles();
@@ -75,23 +283,35 @@ public class FileMgr {
 		}
 
 		// check the existence of log folder
-		if (!isNew && !logDirectory.exists())
+		if (!IN_MEMORY_DB && !isNew && !logDirectory.exists())
 			throw new RuntimeException("log file for the existed " + dbName
 					+ " is missing");
 
-		// create the directory if the database is new
-		if (isNew && (!dbDirectory.mkdir()))
-			throw new RuntimeException("cannot create " + dbName);
+		// create the directories if the database is new
+		for (File dir : dataDirectories)
+			if (!dir.exists() && !dir.mkdir())
+				throw new RuntimeException("cannot create " + dir);
+
+		// a database of another format would be misread rather than rejected
+		if (!IN_MEMORY_DB) {
+			if (isNew)
+				writeFormat();
+			else
+				checkFormat();
+		}
 
 		// remove any leftover temporary tables
-		for (String filename : dbDirectory.list())
-			if (filename.startsWith(TMP_FILE_NAME_PREFIX))
-				new File(dbDirectory, filename).delete();
+		for (File dir : dataDirectories)
+			for (String filename : dir.list())
+				if (filename.startsWith(TMP_FILE_NAME_PREFIX))
+					new File(dir, filename).delete();
 		
+		if (IN_MEMORY_DB && logger.isLoggable(Level.WARNING))
+			logger.warning("all files are kept in memory and will be lost");
 		if (logger.isLoggable(Level.INFO))
 			logger.info("[Homework Version File Manager]");
 		if (logger.isLoggable(Level.INFO))
-			logger.info("block size " + Page.BLOCK_SIZE);
+			logger.info("block size " + Page.DISK_BLOCK_SIZE);
 	}
 
 	/**
@@ -102,17 +322,80 @@ public class FileMgr {
 	 * @param bb
 	 *            the byte buffer
 	 */
-	synchronized void read(BlockId blk, IoBuffer bb) {
+	void read(BlockId blk, IoBuffer bb) {
+		// a queued write is newer than the contents on disk; one that is gone
+		// has reached the disk, and no new one can be queued for a block
+		// being read
+		if (ioScheduler.readPending(blk, bb))
+			return;
 		try {
-			IoChannel fileChannel = getFileChannel(blk.fileName());
-			bb.clear();
-			fileChannel.read(bb, blk.number() * BLOCK_SIZE);
+			IoChannel fileChannel = acquireChannel(blk.fileName());
+			Lock lock = fileChannel.getReadWriteLock().readLock();
+			lock.lock();
+			try {
+				bb.clear();
+				long start = System.nanoTime();
+				int bytes = fileChannel.read(bb,
+						blk.number() * DISK_BLOCK_SIZE);
+				recordIo(blk.fileName(), IoStats.READ, bytes, start);
+			} finally {
+				lock.unlock();
+				releaseChannel(blk.fileName());
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 			throw new RuntimeException("cannot read block " + blk);
 		}
 	}
 
+	/**
+	 * Reads the contents of contiguous disk blocks into the specified byte
+	 * buffers using a single scattering read. The i-th buffer receives the
+	 * contents of block startBlock + i.
+	 * 
+	 * @param fileName
+	 *            the name of the file
+	 * @param startBlock
+	 *            the number of the first block to read
+	 * @param frames
+	 *            the byte buffers, one for each block
+	 * @return the number of blocks actually read, which is smaller than the
+	 *         number of buffers if the end of the file is reached
+	 */
+	int readBlocks(String fileName, long startBlock, IoBuffer[] frames) {
+		// a queued write may reach the disk while the blocks are read, so
+		// the queued contents are taken before; as in read(BlockId,
+		// IoBuffer), no new write can be queued for a block being read
+		byte[][] queued = ioScheduler.copyPending(fileId(fileName),
+				startBlock, frames.length);
+		try {
+			IoChannel fileChannel = acquireChannel(fileName);
+			Lock lock = fileChannel.getReadWriteLock().readLock();
+			lock.lock();
+			try {
+				for (IoBuffer bb : frames)
+					bb.clear();
+				long start = System.nanoTime();
+				long bytes = fileChannel.read(frames,
+						startBlock * DISK_BLOCK_SIZE);
+				recordIo(fileName, IoStats.READ, bytes, start);
+				int count = bytes < 0 ? 0 : (int) (bytes / DISK_BLOCK_SIZE);
+				if (queued != null)
+					for (int i = 0; i < count; i++)
+						if (queued[i] != null)
+							frames[i].put(0, queued[i]);
+				return count;
+			} finally {
+				lock.unlock();
+				releaseChannel(fileName);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("cannot read " + frames.length
+					+ " blocks from block " + startBlock + " of " + fileName);
+		}
+	}
+
 	/**
 	 * Writes the contents of a byte buffer into a disk block.
 	 * 
@@ -121,17 +404,64 @@ public class FileMgr {
 	 * @param bb
 	 *            the byte buffer
 	 */
-	synchronized void write(BlockId blk, IoBuffer bb) {
+	void write(BlockId blk, IoBuffer bb) {
+		// a queued write of the block must not overwrite this one
+		ioScheduler.supersede(blk);
 		try {
-			IoChannel fileChannel = getFileChannel(blk.fileName());
-			bb.rewind();
-			fileChannel.write(bb, blk.number() * BLOCK_SIZE);
+			IoChannel fileChannel = acquireChannel(blk.fileName());
+			Lock lock = fileChannel.getReadWriteLock().readLock();
+			lock.lock();
+			try {
+				bb.rewind();
+				long start = System.nanoTime();
+				int bytes = fileChannel.write(bb, blk.number()
+						* DISK_BLOCK_SIZE);
+				recordIo(blk.fileName(), IoStats.WRITE, bytes, start);
+			} finally {
+				lock.unlock();
+				releaseChannel(blk.fileName());
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 			throw new RuntimeException("cannot write block" + blk);
 		}
 	}
 
+	/**
+	 * Writes the contents of the specified byte buffers into contiguous disk
+	 * blocks using a single gathering write. The i-th buffer is written to
+	 * block startBlock + i. This method is called by the {@link IoScheduler}.
+	 * 
+	 * @param fileName
+	 *            the name of the file
+	 * @param startBlock
+	 *            the number of the first block to write
+	 * @param frames
+	 *            the byte buffers, one for each block
+	 */
+	void writeBlocks(String fileName, long startBlock, IoBuffer[] frames) {
+		try {
+			IoChannel fileChannel = acquireChannel(fileName);
+			Lock lock = fileChannel.getReadWriteLock().readLock();
+			lock.lock();
+			try {
+				for (IoBuffer bb : frames)
+					bb.rewind();
+				long start = System.nanoTime();
+				long bytes = fileChannel.write(frames,
+						startBlock * DISK_BLOCK_SIZE);
+				recordIo(fileName, IoStats.WRITE, bytes, start);
+			} finally {
+				lock.unlock();
+				releaseChannel(fileName);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("cannot write " + frames.length
+					+ " blocks from block " + startBlock + " of " + fileName);
+		}
+	}
+
 	/**
 	 * Appends the contents of a byte buffer to the end of the specified file.
 	 * 
@@ -141,19 +471,29 @@ public class FileMgr {
 	 *            the byte buffer
 	 * @return a block ID refers to the newly-created block.
 	 */
-	synchronized BlockId append(String fileName, IoBuffer bb) {
+	BlockId append(String fileName, IoBuffer bb) {
 		try {
-			IoChannel fileChannel = getFileChannel(fileName);
+			IoChannel fileChannel = acquireChannel(fileName);
+			// the new block must be the end of the file when it is written
+			Lock lock = fileChannel.getReadWriteLock().writeLock();
+			lock.lock();
+			try {
+				// create a new BlockId
+				long newblknum = fileChannel.size() / DISK_BLOCK_SIZE;
+				BlockId blk = new BlockId(fileName, newblknum);
 
-			// create a new BlockId
-			long newblknum = fileChannel.size() / BLOCK_SIZE;
-			BlockId blk = new BlockId(fileName, newblknum);
+				// write the new block to the end of file
+				bb.rewind();
+				long start = System.nanoTime();
+				int bytes = fileChannel.write(bb,
+						blk.number() * DISK_BLOCK_SIZE);
+				recordIo(fileName, IoStats.APPEND, bytes, start);
 
-			// write the new block to the end of file
-			bb.rewind();
-			fileChannel.write(bb, blk.number() * BLOCK_SIZE);
-
-			return blk;
+				return blk;
+			} finally {
+				lock.unlock();
+				releaseChannel(fileName);
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 			return null;
@@ -168,10 +508,17 @@ public class FileMgr {
 	 * 
 	 * @return the number of blocks in the file
 	 */
-	public synchronized long size(String fileName) {
+	public long size(String fileName) {
 		try {
-			IoChannel fileChannel = getFileChannel(fileName);
-			return fileChannel.size() / BLOCK_SIZE;
+			IoChannel fileChannel = acquireChannel(fileName);
+			Lock lock = fileChannel.getReadWriteLock().readLock();
+			lock.lock();
+			try {
+				return fileChannel.size() / DISK_BLOCK_SIZE;
+			} finally {
+				lock.unlock();
+				releaseChannel(fileName);
+			}
 		} catch (IOException e) {
 			throw new RuntimeException("cannot access " + fileName);
 		}
@@ -187,6 +534,187 @@ public class FileMgr {
 		return isNew;
 	}
 
+	/**
+	 * Returns the number of file channels currently open.
+	 * 
+	 * @return the number of open file channels
+	 */
+	public int openFileCount() {
+		return openFiles.size();
+	}
+
+	/**
+	 * Returns the number of file channels that have been closed to keep the
+	 * number of open files under {@link #MAX_OPEN_FILES}.
+	 * 
+	 * @return the number of evicted file channels
+	 */
+	public long fileEvictionCount() {
+		return openFiles.evictionCount();
+	}
+
+	/**
+	 * Returns the scheduler of asynchronous page writes.
+	 * 
+	 * @return the I/O scheduler
+	 */
+	public IoScheduler ioScheduler() {
+		return ioScheduler;
+	}
+
+	/**
+	 * Returns the per-file I/O statistics.
+	 * 
+	 * @return the I/O statistics
+	 */
+	public IoStats ioStats() {
+		return ioStats;
+	}
+
+	/**
+	 * Returns the names of the log files whose names start with the specified
+	 * prefix.
+	 * 
+	 * @param prefix
+	 *            the prefix of the names
+	 * @return the names of the matching log files
+	 */
+	public String[] listLogFiles(String prefix) {
+		String[] names;
+		if (IN_MEMORY_DB)
+			names = memoryFiles.keySet().toArray(new String[0]);
+		else
+			names = logDirectory.list();
+		int count = 0;
+		for (String name : names)
+			if (name.startsWith(prefix) && isLogFile(name))
+				names[count++] = name;
+		return Arrays.copyOf(names, count);
+	}
+
+	/**
+	 * Renames a log file, so that its space can be reused without allocating
+	 * it again. The target file must not exist.
+	 * 
+	 * @param oldName
+	 *            the current name of the log file
+	 * @param newName
+	 *            the new name of the log file
+	 */
+	public synchronized void renameLogFile(String oldName, String newName) {
+		if (IN_MEMORY_DB) {
+			memoryFiles.put(newName, memoryFiles.remove(oldName));
+			return;
+		}
+		try {
+			openFiles.remove(oldName);
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("cannot close " + oldName);
+		}
+		if (!new File(logDirectory, oldName).renameTo(new File(logDirectory,
+				newName)))
+			throw new RuntimeException("cannot rename " + oldName + " to "
+					+ newName);
+	}
+
+	/**
+	 * Deletes the specified log file.
+	 * 
+	 * @param fileName
+	 *            the name of the log file
+	 */
+	public synchronized void deleteLogFile(String fileName) {
+		try {
+			openFiles.remove(fileName);
+			IoChannel memoryChannel = memoryFiles.remove(fileName);
+			if (memoryChannel != null)
+				memoryChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("cannot close " + fileName);
+		}
+		if (IN_MEMORY_DB)
+			return;
+		File file = new File(logDirectory, fileName);
+		if (file.exists() && !file.delete() && logger.isLoggable(Level.WARNING))
+			logger.warning("cannot delete log file " + fileName);
+	}
+
+	/**
+	 * Deletes the specified temporary file, wherever it is kept, and drops its
+	 * queued writes. The file must no longer be in use.
+	 * 
+	 * @param fileName
+	 *            the name of the temporary file
+	 */
+	public void deleteTempFile(String fileName) {
+		// must not hold this monitor while the dispatched writes finish
+		ioScheduler.discard(fileName);
+		synchronized (this) {
+			try {
+				IoChannel memoryChannel = memoryFiles.remove(fileName);
+				if (memoryChannel != null)
+					memoryChannel.close();
+				openFiles.remove(fileName);
+			} catch (IOException e) {
+				e.printStackTrace();
+				throw new RuntimeException("cannot close " + fileName);
+			}
+			File file = locateFile(fileName);
+			if (file.exists() && !file.delete()
+					&& logger.isLoggable(Level.WARNING))
+				logger.warning("cannot delete temporary file " + fileName);
+		}
+		// the blocks of the file have left the buffer pool and the scheduler
+		releaseFileId(fileName);
+	}
+
+	/**
+	 * Extends the specified file with zeroed blocks until it has the specified
+	 * number of blocks, so that later writes do not have to allocate space.
+	 * 
+	 * @param fileName
+	 *            the name of the file
+	 * @param numBlocks
+	 *            the number of blocks the file should have
+	 */
+	public synchronized void preallocate(String fileName, long numBlocks) {
+		IoBuffer[] frames = new IoBuffer[IoScheduler.MAX_MERGE_BLOCKS];
+		for (int i = 0; i < frames.length; i++)
+			frames[i] = IoAllocator.acquireIoBuffer(DISK_BLOCK_SIZE);
+		try {
+			IoChannel fileChannel = acquireChannel(fileName);
+			Lock lock = fileChannel.getReadWriteLock().writeLock();
+			lock.lock();
+			try {
+				long blkNum = fileChannel.size() / DISK_BLOCK_SIZE;
+				while (blkNum < numBlocks) {
+					int count = (int) Math.min(frames.length, numBlocks
+							- blkNum);
+					IoBuffer[] batch = Arrays.copyOf(frames, count);
+					for (IoBuffer bb : batch)
+						bb.rewind();
+					long start = System.nanoTime();
+					long bytes = fileChannel.write(batch,
+							blkNum * DISK_BLOCK_SIZE);
+					recordIo(fileName, IoStats.APPEND, bytes, start);
+					blkNum += count;
+				}
+			} finally {
+				lock.unlock();
+				releaseChannel(fileName);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("cannot preallocate " + numBlocks
+					+ " blocks of " + fileName);
+		} finally {
+			for (IoBuffer bb : frames)
+				IoAllocator.releaseIoBuffer(bb);
+		}
+	}
+
 	/**
 	 * Deletes all old log files and builds new log files.
 	 */
@@ -195,50 +723,236 @@ public class FileMgr {
 			deleteLogFiles();
 
 			// Create a new log file
-			File logFile = new File(logDirectory, LOG_FILE);
-			IoChannel fileChannel = IoAllocator.newIoChannel(logFile);
-			openFiles.put(LOG_FILE, fileChannel);
+			acquireChannel(LOG_FILE);
+			releaseChannel(LOG_FILE);
 		} catch (IOException e) {
 			throw new RuntimeException("rebuild log file fail");
 		}
 	}
 
 	/**
-	 * Returns the file channel for the specified filename. The file channel is
-	 * stored in a map keyed on the filename. If the file is not open, then it
-	 * is opened and the file channel is added to the map.
+	 * Returns the channel of the specified file. The channel must be released
+	 * by {@link #releaseChannel(String)} after use. Files kept in memory are
+	 * not subject to the limit of open files, since evicting them would lose
+	 * their contents.
 	 * 
 	 * @param fileName
-	 *            the specified filename
-	 * 
-	 * @return the file channel associated with the open file.
+	 *            the name of the file
+	 * @return the channel of the file
 	 * @throws IOException
 	 */
-	private IoChannel getFileChannel(String fileName) throws IOException {
-		IoChannel fileChannel = openFiles.get(fileName);
+	private IoChannel acquireChannel(String fileName) throws IOException {
+		if (!isInMemory(fileName))
+			return openFiles.acquire(fileName);
 
+		IoChannel fileChannel = memoryFiles.get(fileName);
 		if (fileChannel == null) {
-			File dbFile = fileName.equals(LOG_FILE) ? new File(logDirectory,
-					fileName) : new File(dbDirectory, fileName);
-			fileChannel = IoAllocator.newIoChannel(dbFile);
+			synchronized (memoryFiles) {
+				fileChannel = memoryFiles.get(fileName);
+				if (fileChannel == null) {
+					final String spillFile = fileName;
+					// a spilled file is opened through the cache like any
+					// other file on disk
+					fileChannel = new MemoryIoChannel(fileName,
+							IN_MEMORY_DB ? null : tempMemoryBudget) {
+						@Override
+						protected IoChannel acquireSpillFile()
+								throws IOException {
+							return openFiles.acquire(spillFile);
+						}
 
-			openFiles.put(fileName, fileChannel);
+						@Override
+						protected void releaseSpillFile() {
+							openFiles.release(spillFile);
+						}
+					};
+					memoryFiles.put(fileName, fileChannel);
+				}
+			}
 		}
-
 		return fileChannel;
 	}
 
+	private void recordIo(String fileName, int op, long bytes, long start) {
+		if (COLLECT_IO_STATS)
+			ioStats.record(fileName, op, bytes < 0 ? 0 : bytes,
+					System.nanoTime() - start);
+	}
+
+	private void registerIoStats() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(IoStats.OBJECT_NAME);
+			// replace the statistics of a previous file manager
+			if (server.isRegistered(name))
+				server.unregisterMBean(name);
+			server.registerMBean(ioStats, name);
+		} catch (JMException e) {
+			if (logger.isLoggable(Level.WARNING))
+				logger.warning("cannot register the I/O statistics: " + e);
+		}
+	}
+
+	private void releaseChannel(String fileName) {
+		if (!isInMemory(fileName))
+			openFiles.release(fileName);
+	}
+
+	private boolean isLogFile(String fileName) {
+		return fileName.equals(LOG_FILE) || fileName.startsWith(LOG_FILE + ".");
+	}
+
+	private boolean isInMemory(String fileName) {
+		return IN_MEMORY_DB
+				|| (TEMP_FILES_IN_MEMORY && fileName
+						.startsWith(TMP_FILE_NAME_PREFIX));
+	}
+
 	/**
-	 * Deletes all log files in the log directory.
+	 * Returns true if the specified file is, or is going to be, stored
+	 * compressed.
+	 * 
+	 * @param fileName
+	 *            the name of the file
+	 * @param dbFile
+	 *            the location of the file
+	 * @return true if the file is compressed
+	 */
+	private boolean isCompressed(String fileName, File dbFile) {
+		if (CompressedIoChannel.mapFileOf(dbFile).exists())
+			return true;
+		if (dbFile.exists() || fileName.startsWith(TMP_FILE_NAME_PREFIX))
+			return false;
+		for (String name : COMPRESSED_FILES) {
+			String suffix = name.trim();
+			if (!suffix.isEmpty() && fileName.endsWith(suffix))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Adds a "name:index" pair of {@link #TABLE_DIR_MAPPING} to the mapping
+	 * of tables to data directories.
+	 * 
+	 * @param mapping
+	 *            the pair of a table name and a directory index
+	 * @throws IllegalArgumentException
+	 *             if the pair is malformed or the index does not refer to a
+	 *             data directory
+	 */
+	void mapTableDir(String mapping) {
+		String[] pair = mapping.split(":");
+		if (pair.length != 2 || pair[0].trim().isEmpty())
+			throw new IllegalArgumentException("malformed entry \"" + mapping
+					+ "\" of TABLE_DIR_MAPPING, expecting name:index");
+		int dir;
+		try {
+			dir = Integer.parseInt(pair[1].trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("malformed entry \"" + mapping
+					+ "\" of TABLE_DIR_MAPPING, expecting name:index");
+		}
+		if (dir < 0 || dir >= dataDirectories.length)
+			throw new IllegalArgumentException("entry \"" + mapping
+					+ "\" of TABLE_DIR_MAPPING refers to directory " + dir
+					+ ", but only 0 (HOME_DIR) to " + DATA_DIRS.length
+					+ " (DATA_DIRS) exist");
+		tableDirs.put(pair[0].trim(), dir);
+	}
+
+	/**
+	 * Returns the location of the specified database file. An existing file is
+	 * looked up in every data directory; a new file is placed according to
+	 * {@link #FILE_PLACEMENT}.
+	 * 
+	 * @param fileName
+	 *            the name of the file
+	 * @return the location of the file
+	 */
+	private File locateFile(String fileName) {
+		if (dataDirectories.length == 1)
+			return new File(dbDirectory, fileName);
+
+		for (File dir : dataDirectories) {
+			File file = new File(dir, fileName);
+			if (file.exists())
+				return file;
+		}
+
+		int dir;
+		switch (FILE_PLACEMENT) {
+		case PLACEMENT_ROUND_ROBIN:
+			dir = nextDir.getAndIncrement();
+			break;
+		case PLACEMENT_TABLE_MAPPING:
+			int dot = fileName.indexOf('.');
+			Integer mapped = tableDirs.get(dot < 0 ? fileName : fileName
+					.substring(0, dot));
+			dir = mapped != null ? mapped : fileName.hashCode();
+			break;
+		default:
+			dir = fileName.hashCode();
+		}
+		return new File(dataDirectories[(dir & Integer.MAX_VALUE)
+				% dataDirectories.length], fileName);
+	}
+
+	/**
+	 * Returns the description of the on-disk format written by this version,
+	 * which covers everything that changes the layout of the files.
+	 * 
+	 * @return the description of the format
+	 */
+	private static String format() {
+		return "version=" + FORMAT_VERSION + " blockSize=" + DISK_BLOCK_SIZE;
+	}
+
+	private void writeFormat() {
+		File file = new File(dbDirectory, FORMAT_FILE);
+		try {
+			Files.write(file.toPath(), format().getBytes(FORMAT_CHARSET));
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("cannot write " + file);
+		}
+	}
+
+	private void checkFormat() {
+		File file = new File(dbDirectory, FORMAT_FILE);
+		String format;
+		try {
+			format = file.exists() ? new String(Files.readAllBytes(file
+					.toPath()), FORMAT_CHARSET).trim() : "none";
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("cannot read " + file);
+		}
+		if (!format.equals(format()))
+			throw new RuntimeException("the database " + dbDirectory
+					+ " has the on-disk format " + format + " (" + file
+					+ "), but this version reads " + format()
+					+ "; reload the database");
+	}
+
+	/**
+	 * Deletes all log files in the log directory, or in memory if
+	 * {@link #IN_MEMORY_DB} is set.
 	 */
 	private void deleteLogFiles() {
+		if (IN_MEMORY_DB) {
+			for (String fileName : listLogFiles(""))
+				deleteLogFile(fileName);
+			return;
+		}
 		try {
 			for (String fileName : logDirectory.list())
-				if (fileName.endsWith(".log")) {
+				if (fileName.endsWith(".log") || isLogFile(fileName)) {
 					// Close file, if it opened
-					IoChannel fileChannel = openFiles.remove(fileName);
-					if (fileChannel != null)
-						fileChannel.close();
+					openFiles.remove(fileName);
+					IoChannel memoryChannel = memoryFiles.remove(fileName);
+					if (memoryChannel != null)
+						memoryChannel.close();
 
 					// Actually delete file
 					boolean hasDeleted = new File(logDirectory, fileName)
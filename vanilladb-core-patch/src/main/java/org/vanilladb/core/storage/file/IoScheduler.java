@@ -0,0 +1,391 @@
+package org.vanilladb.core.storage.file;
+
+import static org.vanilladb.core.storage.file.Page.DISK_BLOCK_SIZE;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.vanilladb.core.storage.file.io.IoAllocator;
+import org.vanilladb.core.storage.file.io.IoBuffer;
+import org.vanilladb.core.util.PropertiesFetcher;
+
+/**
+ * The I/O scheduler for asynchronous page writes. A submitted write is copied
+ * into a snapshot and queued. Dispatcher threads take the queued writes in
+ * elevator order (by file, then by block number, wrapping around at the
+ * end), merge the writes of adjacent blocks into a single gathering write, and
+ * keep at most {@link #QUEUE_DEPTH} requests outstanding. The requests are
+ * issued concurrently, since {@link FileMgr} does not serialize writes, so
+ * the device sees up to that many at a time, except that a channel may
+ * serialize the gathering writes to one file.
+ *
+ * <p>
+ * Until a queued write reaches the disk, {@link FileMgr} reads the block from
+ * its snapshot, and a synchronous write of the same block supersedes it.
+ * </p>
+ *
+ * <p>
+ * The snapshot of a failed write is kept, and read from, until the block is
+ * written again. {@link #awaitCompletion()} retries the failed writes once,
+ * and throws if any of them still fails, so that no caller assumes the block
+ * is durable.
+ * </p>
+ */
+public class IoScheduler {
+	private static Logger logger = Logger.getLogger(IoScheduler.class
+			.getName());
+
+	/**
+	 * The number of write requests dispatched at the same time.
+	 */
+	public static final int QUEUE_DEPTH;
+	/**
+	 * The maximum number of adjacent blocks merged into one request.
+	 */
+	public static final int MAX_MERGE_BLOCKS;
+	/**
+	 * The maximum number of queued writes. Submitters wait when the queue is
+	 * full.
+	 */
+	public static final int MAX_PENDING;
+
+	static {
+		QUEUE_DEPTH = PropertiesFetcher.getPropertyAsInteger(
+				IoScheduler.class.getName() + ".QUEUE_DEPTH", 4);
+		MAX_MERGE_BLOCKS = PropertiesFetcher.getPropertyAsInteger(
+				IoScheduler.class.getName() + ".MAX_MERGE_BLOCKS", 32);
+		MAX_PENDING = PropertiesFetcher.getPropertyAsInteger(
+				IoScheduler.class.getName() + ".MAX_PENDING", 1024);
+	}
+
+	private static final Comparator<BlockId> ELEVATOR_ORDER = new Comparator<BlockId>() {
+		@Override
+		public int compare(BlockId b1, BlockId b2) {
+			if (b1.fileId() != b2.fileId())
+				return b1.fileId() < b2.fileId() ? -1 : 1;
+			return Long.compare(b1.number(), b2.number());
+		}
+	};
+
+	private FileMgr fileMgr;
+	private TreeMap<BlockId, byte[]> pending = new TreeMap<BlockId, byte[]>(
+			ELEVATOR_ORDER);
+	private Map<BlockId, byte[]> inFlight = new HashMap<BlockId, byte[]>();
+	private Map<BlockId, byte[]> failed = new HashMap<BlockId, byte[]>();
+	private RuntimeException lastFailure;
+	private Deque<byte[]> freeSnapshots = new ArrayDeque<byte[]>();
+	private int numSnapshots;
+	private BlockId head;
+
+	IoScheduler(FileMgr fileMgr) {
+		this.fileMgr = fileMgr;
+		for (int i = 0; i < QUEUE_DEPTH; i++) {
+			Thread dispatcher = new Thread(new Dispatcher(),
+					"IoScheduler-dispatcher-" + i);
+			dispatcher.setDaemon(true);
+			dispatcher.start();
+		}
+	}
+
+	/**
+	 * Queues an asynchronous write of the specified page to the specified
+	 * block. The contents of the page are copied, so the page can be modified
+	 * as soon as this method returns. A queued write of the same block is
+	 * replaced.
+	 *
+	 * @param blk
+	 *            the block to be written
+	 * @param page
+	 *            the page holding the contents
+	 */
+	public void submit(BlockId blk, Page page) {
+		byte[] snapshot;
+		synchronized (this) {
+			try {
+				while (inFlight.containsKey(blk))
+					wait();
+				snapshot = pending.remove(blk);
+				byte[] failedSnapshot = failed.remove(blk);
+				if (snapshot == null)
+					snapshot = failedSnapshot;
+				else if (failedSnapshot != null)
+					freeSnapshots.push(failedSnapshot);
+				while (snapshot == null) {
+					snapshot = freeSnapshots.poll();
+					if (snapshot == null && numSnapshots < MAX_PENDING) {
+						snapshot = new byte[DISK_BLOCK_SIZE];
+						numSnapshots++;
+					}
+					if (snapshot == null)
+						wait();
+				}
+			} catch (InterruptedException e) {
+				throw new RuntimeException("interrupted while queuing " + blk);
+			}
+		}
+
+		// only the owner of the page submits its block, so copy it unlocked
+		page.copyTo(snapshot);
+
+		synchronized (this) {
+			pending.put(blk, snapshot);
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Waits until all queued writes have reached the disk. The writes that
+	 * failed earlier are queued again first.
+	 *
+	 * @throws RuntimeException
+	 *             if some write has failed
+	 */
+	public synchronized void awaitCompletion() {
+		if (!failed.isEmpty()) {
+			pending.putAll(failed);
+			failed.clear();
+			notifyAll();
+		}
+		try {
+			while (!pending.isEmpty() || !inFlight.isEmpty())
+				wait();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("interrupted while flushing writes");
+		}
+		if (!failed.isEmpty())
+			throw new RuntimeException("cannot write " + failed.size()
+					+ " blocks", lastFailure);
+	}
+
+	/**
+	 * Returns true if the last write of the specified block has failed, and
+	 * the block has not been written since.
+	 *
+	 * @param blk
+	 *            the block
+	 * @return true if the write of the block has failed
+	 */
+	public synchronized boolean hasFailed(BlockId blk) {
+		return failed.containsKey(blk);
+	}
+
+	/**
+	 * Copies the contents of a queued write of the specified block into the
+	 * byte buffer.
+	 *
+	 * @param blk
+	 *            the block to be read
+	 * @param bb
+	 *            the byte buffer
+	 * @return true if the block has a queued write
+	 */
+	synchronized boolean readPending(BlockId blk, IoBuffer bb) {
+		byte[] snapshot = pending.get(blk);
+		if (snapshot == null)
+			snapshot = inFlight.get(blk);
+		if (snapshot == null)
+			snapshot = failed.get(blk);
+		if (snapshot == null)
+			return false;
+		bb.put(0, snapshot);
+		return true;
+	}
+
+	/**
+	 * Returns copies of the queued writes of the specified blocks, which may
+	 * reach the disk and be recycled at any time once this method returns.
+	 *
+	 * @param fileId
+	 *            the ID of the file
+	 * @param startBlock
+	 *            the number of the first block
+	 * @param count
+	 *            the number of blocks
+	 * @return the contents of the i-th block at index i, or null where a block
+	 *         has no queued write; null if none of them has one
+	 */
+	synchronized byte[][] copyPending(int fileId, long startBlock, int count) {
+		if (pending.isEmpty() && inFlight.isEmpty() && failed.isEmpty())
+			return null;
+		byte[][] copies = null;
+		for (int i = 0; i < count; i++) {
+			BlockId blk = new BlockId(fileId, startBlock + i);
+			byte[] snapshot = pending.get(blk);
+			if (snapshot == null)
+				snapshot = inFlight.get(blk);
+			if (snapshot == null)
+				snapshot = failed.get(blk);
+			if (snapshot == null)
+				continue;
+			if (copies == null)
+				copies = new byte[count][];
+			copies[i] = snapshot.clone();
+		}
+		return copies;
+	}
+
+	/**
+	 * Drops the queued write of the specified block, or waits for it if it has
+	 * already been dispatched, so that a newer synchronous write is not
+	 * overwritten.
+	 *
+	 * @param blk
+	 *            the block about to be written
+	 */
+	synchronized void supersede(BlockId blk) {
+		if (pending.isEmpty() && inFlight.isEmpty() && failed.isEmpty())
+			return;
+		byte[] snapshot = pending.remove(blk);
+		if (snapshot == null)
+			snapshot = failed.remove(blk);
+		if (snapshot != null) {
+			freeSnapshots.push(snapshot);
+			notifyAll();
+		}
+		try {
+			while (inFlight.containsKey(blk))
+				wait();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("interrupted while writing " + blk);
+		}
+	}
+
+	/**
+	 * Drops the queued writes of the specified file, and waits for those
+	 * already dispatched, so that the file can be deleted.
+	 *
+	 * @param fileName
+	 *            the name of the file about to be deleted
+	 */
+	synchronized void discard(String fileName) {
+		int fileId = FileMgr.fileId(fileName);
+		for (Map<BlockId, byte[]> writes : Arrays.asList(pending, failed)) {
+			Iterator<Map.Entry<BlockId, byte[]>> iter = writes.entrySet()
+					.iterator();
+			while (iter.hasNext()) {
+				Map.Entry<BlockId, byte[]> entry = iter.next();
+				if (entry.getKey().fileId() == fileId) {
+					freeSnapshots.push(entry.getValue());
+					iter.remove();
+				}
+			}
+		}
+		notifyAll();
+		try {
+			while (isInFlight(fileId))
+				wait();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("interrupted while discarding "
+					+ fileName);
+		}
+	}
+
+	private boolean isInFlight(int fileId) {
+		for (BlockId blk : inFlight.keySet())
+			if (blk.fileId() == fileId)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Takes the next run of adjacent blocks in elevator order, and moves them
+	 * to the in-flight set.
+	 */
+	private synchronized BlockId[] nextRun() throws InterruptedException {
+		while (pending.isEmpty())
+			wait();
+
+		Map.Entry<BlockId, byte[]> entry = head == null ? null : pending
+				.ceilingEntry(head);
+		if (entry == null)
+			entry = pending.firstEntry();
+
+		BlockId[] run = new BlockId[MAX_MERGE_BLOCKS];
+		int count = 0;
+		while (entry != null && count < MAX_MERGE_BLOCKS) {
+			BlockId blk = entry.getKey();
+			if (count > 0) {
+				BlockId prev = run[count - 1];
+				if (blk.fileId() != prev.fileId()
+						|| blk.number() != prev.number() + 1)
+					break;
+			}
+			run[count++] = blk;
+			inFlight.put(blk, entry.getValue());
+			entry = pending.higherEntry(blk);
+		}
+		for (int i = 0; i < count; i++)
+			pending.remove(run[i]);
+		head = run[count - 1];
+
+		BlockId[] result = new BlockId[count];
+		System.arraycopy(run, 0, result, 0, count);
+		return result;
+	}
+
+	private synchronized void complete(BlockId[] run) {
+		for (BlockId blk : run)
+			freeSnapshots.push(inFlight.remove(blk));
+		notifyAll();
+	}
+
+	/**
+	 * Keeps the snapshots of a run whose write has failed, until the blocks
+	 * are written again.
+	 */
+	private synchronized void fail(BlockId[] run, RuntimeException e) {
+		for (BlockId blk : run)
+			failed.put(blk, inFlight.remove(blk));
+		lastFailure = e;
+		notifyAll();
+	}
+
+	private class Dispatcher implements Runnable {
+		private IoBuffer[] frames = new IoBuffer[MAX_MERGE_BLOCKS];
+
+		Dispatcher() {
+			for (int i = 0; i < frames.length; i++)
+				frames[i] = IoAllocator.newIoBuffer(DISK_BLOCK_SIZE);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				BlockId[] run;
+				try {
+					run = nextRun();
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				IoBuffer[] batch = new IoBuffer[run.length];
+				synchronized (IoScheduler.this) {
+					for (int i = 0; i < run.length; i++) {
+						batch[i] = frames[i];
+						batch[i].put(0, inFlight.get(run[i]));
+					}
+				}
+
+				try {
+					fileMgr.writeBlocks(run[0].fileName(), run[0].number(),
+							batch);
+				} catch (RuntimeException e) {
+					if (logger.isLoggable(Level.SEVERE))
+						logger.log(Level.SEVERE, "cannot write " + run.length
+								+ " blocks from " + run[0], e);
+					fail(run, e);
+					continue;
+				}
+				complete(run);
+			}
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package org.vanilladb.core.storage.file;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The I/O statistics of each file, recorded by the {@link FileMgr} around
+ * every call to a file channel. For each kind of operation, the number of
+ * operations, the number of bytes transferred and a latency histogram are
+ * kept. Counters are striped by thread so that recording stays cheap under
+ * concurrency.
+ */
+public class IoStats implements IoStatsMXBean {
+	public static final String OBJECT_NAME = "org.vanilladb.core.storage.file:type=IoStats";
+
+	/**
+	 * The kinds of operations.
+	 */
+	public static final int READ = 0, WRITE = 1, APPEND = 2;
+	private static final int NUM_OPS = 3;
+	private static final String[] OP_NAMES = { "read", "write", "append" };
+
+	private static class FileStats {
+		StripedCounter[] ops = new StripedCounter[NUM_OPS];
+		StripedCounter[] bytes = new StripedCounter[NUM_OPS];
+		LatencyHistogram[] latencies = new LatencyHistogram[NUM_OPS];
+
+		FileStats() {
+			for (int op = 0; op < NUM_OPS; op++) {
+				ops[op] = new StripedCounter();
+				bytes[op] = new StripedCounter();
+				latencies[op] = new LatencyHistogram();
+			}
+		}
+	}
+
+	/**
+	 * A point-in-time copy of the statistics of a file.
+	 */
+	public static class Snapshot {
+		private String fileName;
+		private long[] ops = new long[NUM_OPS];
+		private long[] bytes = new long[NUM_OPS];
+		private long[][] latencies = new long[NUM_OPS][];
+
+		private Snapshot(String fileName, FileStats stats) {
+			this.fileName = fileName;
+			for (int op = 0; op < NUM_OPS; op++) {
+				ops[op] = stats.ops[op].sum();
+				bytes[op] = stats.bytes[op].sum();
+				latencies[op] = stats.latencies[op].snapshot();
+			}
+		}
+
+		public String fileName() {
+			return fileName;
+		}
+
+		/**
+		 * Returns the number of operations of the specified kind.
+		 * 
+		 * @param op
+		 *            {@link IoStats#READ}, {@link IoStats#WRITE} or
+		 *            {@link IoStats#APPEND}
+		 * @return the number of operations
+		 */
+		public long count(int op) {
+			return ops[op];
+		}
+
+		/**
+		 * Returns the number of bytes transferred by operations of the
+		 * specified kind.
+		 * 
+		 * @param op
+		 *            the kind of operations
+		 * @return the number of bytes
+		 */
+		public long bytes(int op) {
+			return bytes[op];
+		}
+
+		/**
+		 * Returns the latency below which the specified fraction of the
+		 * operations of the specified kind completed, e.g. 0.99 for p99.
+		 * 
+		 * @param op
+		 *            the kind of operations
+		 * @param quantile
+		 *            a fraction between 0 and 1
+		 * @return the latency in nanoseconds
+		 */
+		public long latency(int op, double quantile) {
+			return LatencyHistogram.valueAt(latencies[op], quantile);
+		}
+	}
+
+	private ConcurrentMap<String, FileStats> files = new ConcurrentHashMap<String, FileStats>();
+
+	/**
+	 * Records an operation on the specified file.
+	 * 
+	 * @param fileName
+	 *            the name of the file
+	 * @param op
+	 *            the kind of the operation
+	 * @param bytes
+	 *            the number of bytes transferred
+	 * @param nanos
+	 *            the latency of the operation
+	 */
+	void record(String fileName, int op, long bytes, long nanos) {
+		FileStats stats = files.get(fileName);
+		if (stats == null) {
+			FileStats newStats = new FileStats();
+			stats = files.putIfAbsent(fileName, newStats);
+			if (stats == null)
+				stats = newStats;
+		}
+		stats.ops[op].add(1);
+		stats.bytes[op].add(bytes);
+		stats.latencies[op].record(nanos);
+	}
+
+	/**
+	 * Returns a copy of the current statistics of every file, sorted by file
+	 * name.
+	 * 
+	 * @return the snapshots keyed by file name
+	 */
+	public Map<String, Snapshot> snapshot() {
+		Map<String, Snapshot> snapshots = new TreeMap<String, Snapshot>();
+		for (Map.Entry<String, FileStats> entry : files.entrySet())
+			snapshots.put(entry.getKey(), new Snapshot(entry.getKey(),
+					entry.getValue()));
+		return snapshots;
+	}
+
+	@Override
+	public String[] getFileNames() {
+		return snapshot().keySet().toArray(new String[0]);
+	}
+
+	@Override
+	public long getReadCount() {
+		return total(READ, false);
+	}
+
+	@Override
+	public long getWriteCount() {
+		return total(WRITE, false);
+	}
+
+	@Override
+	public long getAppendCount() {
+		return total(APPEND, false);
+	}
+
+	@Override
+	public long getBytesRead() {
+		return total(READ, true);
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return total(WRITE, true) + total(APPEND, true);
+	}
+
+	@Override
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-24s %-6s %10s %14s %10s %10s %10s%n",
+				"file", "op", "count", "bytes", "p50(us)", "p99(us)",
+				"p999(us)"));
+		for (Snapshot s : snapshot().values())
+			for (int op = 0; op < NUM_OPS; op++) {
+				if (s.count(op) == 0)
+					continue;
+				sb.append(String.format(
+						"%-24s %-6s %10d %14d %10.1f %10.1f %10.1f%n",
+						s.fileName(), OP_NAMES[op], s.count(op), s.bytes(op),
+						s.latency(op, 0.5) / 1000.0,
+						s.latency(op, 0.99) / 1000.0,
+						s.latency(op, 0.999) / 1000.0));
+			}
+		return sb.toString();
+	}
+
+	@Override
+	public void reset() {
+		for (FileStats stats : files.values())
+			for (int op = 0; op < NUM_OPS; op++) {
+				stats.ops[op].reset();
+				stats.bytes[op].reset();
+				stats.latencies[op].reset();
+			}
+	}
+
+	private long total(int op, boolean inBytes) {
+		long sum = 0;
+		for (FileStats stats : files.values())
+			sum += inBytes ? stats.bytes[op].sum() : stats.ops[op].sum();
+		return sum;
+	}
+}
@@ -0,0 +1,30 @@
+package org.vanilladb.core.storage.file;
+
+/**
+ * The management interface of {@link IoStats}, registered to the platform
+ * MBean server as {@link IoStats#OBJECT_NAME}.
+ */
+public interface IoStatsMXBean {
+
+	String[] getFileNames();
+
+	long getReadCount();
+
+	long getWriteCount();
+
+	long getAppendCount();
+
+	long getBytesRead();
+
+	long getBytesWritten();
+
+	/**
+	 * Returns a table of the operation counts, bytes and latency percentiles
+	 * of every file.
+	 * 
+	 * @return the formatted statistics
+	 */
+	String report();
+
+	void reset();
+}
@@ -0,0 +1,83 @@
+package org.vanilladb.core.storage.file;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds. Values below 16 have their own
+ * buckets; larger values are grouped by their power of two, and each power of
+ * two is split into 8 linear sub-buckets, so a reported percentile is at most
+ * 12.5% above the actual value.
+ */
+class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int LINEAR_LIMIT = 16;
+	private static final int LINEAR_BITS = 4;
+	static final int NUM_BUCKETS = LINEAR_LIMIT + (63 - LINEAR_BITS)
+			* SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+
+	void record(long nanos) {
+		counts.incrementAndGet(bucketOf(nanos < 0 ? 0 : nanos));
+	}
+
+	long[] snapshot() {
+		long[] copy = new long[NUM_BUCKETS];
+		for (int i = 0; i < NUM_BUCKETS; i++)
+			copy[i] = counts.get(i);
+		return copy;
+	}
+
+	void reset() {
+		for (int i = 0; i < NUM_BUCKETS; i++)
+			counts.set(i, 0);
+	}
+
+	/**
+	 * Returns the value below which the specified fraction of the recorded
+	 * values fall.
+	 * 
+	 * @param counts
+	 *            a snapshot of the histogram
+	 * @param quantile
+	 *            a fraction between 0 and 1
+	 * @return the upper bound of the bucket holding the quantile, or 0 if
+	 *         nothing was recorded
+	 */
+	static long valueAt(long[] counts, double quantile) {
+		long total = 0;
+		for (long c : counts)
+			total += c;
+		if (total == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(quantile * total);
+		if (rank < 1)
+			rank = 1;
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return upperBoundOf(i);
+		}
+		return upperBoundOf(counts.length - 1);
+	}
+
+	private static int bucketOf(long value) {
+		if (value < LINEAR_LIMIT)
+			return (int) value;
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR_LIMIT + (exp - LINEAR_BITS) * SUB_BUCKETS + sub;
+	}
+
+	private static long upperBoundOf(int bucket) {
+		if (bucket < LINEAR_LIMIT)
+			return bucket;
+		int exp = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + LINEAR_BITS;
+		int sub = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+		long width = 1L << (exp - SUB_BUCKET_BITS);
+		return (1L << exp) + (sub + 1) * width - 1;
+	}
+}
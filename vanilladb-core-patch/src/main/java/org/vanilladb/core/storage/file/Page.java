@@ -1,10 +1,21 @@
 package org.vanilladb.core.storage.file;
 
+import static java.sql.Types.BIGINT;
+import static java.sql.Types.DOUBLE;
+import static java.sql.Types.INTEGER;
+import static java.sql.Types.VARCHAR;
+
 import java.nio.BufferOverflowException;
+import java.nio.charset.Charset;
 
 import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.sql.BigIntConstant;
 import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.DoubleConstant;
+import org.vanilladb.core.sql.IntegerConstant;
 import org.vanilladb.core.sql.Type;
+import org.vanilladb.core.sql.VarcharConstant;
+import org.vanilladb.core.sql.VarcharType;
 import org.vanilladb.core.storage.file.io.IoAllocator;
 import org.vanilladb.core.storage.file.io.IoBuffer;
 import org.vanilladb.core.util.ByteHelper;
@@ -13,7 +24,9 @@ import org.vanilladb.core.util.PropertiesFetcher;
 /**
  * The contents of a disk block in memory. A page is treated as an array of
  * BLOCK_SIZE bytes. There are methods to get/set values into this array, and to
- * read/write the contents of this array to a disk block. For an example of how
+ * read/write the contents of this array to a disk block. The array follows a
+ * page header, which holds the LSN of the last log record whose modification
+ * the page contains. For an example of how
  * to use Page and {@link BlockId} objects, consider the following code
  * fragment. The first portion increments the integer at offset 792 of block 6
  * of file junk. The second portion stores the string "hello" at offset 20 of a
@@ -43,14 +56,32 @@ import org.vanilladb.core.util.PropertiesFetcher;
 public class Page {
 
 	/**
-	 * The number of bytes in a block. A reasonable value would be 4K.
+	 * The number of bytes in a disk block, including the page header. A
+	 * reasonable value would be 4K.
+	 */
+	public static final int DISK_BLOCK_SIZE;
+	/**
+	 * The number of bytes of a block available to the clients of a page,
+	 * which excludes the page header.
 	 */
 	public static final int BLOCK_SIZE;
+	/**
+	 * The size of the page header.
+	 */
+	public static final int HEADER_SIZE = ByteHelper.LONG_SIZE;
+
 	static {
-		BLOCK_SIZE = PropertiesFetcher.getPropertyAsInteger(
+		DISK_BLOCK_SIZE = PropertiesFetcher.getPropertyAsInteger(
 				Page.class.getName() + ".BLOCK_SIZE", 4096);
+		BLOCK_SIZE = DISK_BLOCK_SIZE - HEADER_SIZE;
 	}
 
+	// the position of the page LSN in the header
+	private static final int LSN_POS = 0;
+
+	private static final Charset CHARSET = Charset
+			.forName(VarcharType.CHAR_SET);
+
 	/**
 	 * Calculates the maximum number of bytes required to store a value of a
 	 * particular {@link Type type} in disk.
@@ -73,7 +104,7 @@ public class Page {
 				+ val.size();
 	}
 
-	private IoBuffer contents = IoAllocator.newIoBuffer(BLOCK_SIZE);
+	private IoBuffer contents = IoAllocator.acquireIoBuffer(DISK_BLOCK_SIZE);
 	private FileMgr fileMgr = VanillaDb.fileMgr();
 
 	/**
@@ -95,7 +126,49 @@ public class Page {
 	 *            a block ID
 	 */
 	public synchronized void read(BlockId blk) {
-		fileMgr.read(blk, contents);
+		fileMgr.read(blk, contents());
+	}
+
+	/**
+	 * Populates the specified pages with the contents of contiguous disk
+	 * blocks, starting from the specified block, using a single I/O request.
+	 * The pages must not be accessed by other threads during the call.
+	 * 
+	 * @param startBlk
+	 *            the ID of the first block
+	 * @param pages
+	 *            the pages to be populated, in block order
+	 * @return the number of pages populated, which is smaller than the number
+	 *         of pages if the end of the file is reached
+	 */
+	public static int readBlocks(BlockId startBlk, Page... pages) {
+		IoBuffer[] frames = new IoBuffer[pages.length];
+		for (int i = 0; i < pages.length; i++)
+			frames[i] = pages[i].contents();
+		return VanillaDb.fileMgr().readBlocks(startBlk.fileName(),
+				startBlk.number(), frames);
+	}
+
+	/**
+	 * Writes the contents of the specified pages to contiguous disk blocks,
+	 * starting from the specified block, using a single I/O request. Queued
+	 * writes of the blocks are superseded, as by {@link #write(BlockId)}. The
+	 * pages must not be accessed by other threads during the call.
+	 * 
+	 * @param startBlk
+	 *            the ID of the first block
+	 * @param pages
+	 *            the pages to be written, in block order
+	 */
+	public static void writeBlocks(BlockId startBlk, Page... pages) {
+		FileMgr fileMgr = VanillaDb.fileMgr();
+		IoBuffer[] frames = new IoBuffer[pages.length];
+		for (int i = 0; i < pages.length; i++) {
+			fileMgr.ioScheduler().supersede(
+					new BlockId(startBlk.fileId(), startBlk.number() + i));
+			frames[i] = pages[i].contents();
+		}
+		fileMgr.writeBlocks(startBlk.fileName(), startBlk.number(), frames);
 	}
 
 	/**
@@ -105,7 +178,29 @@ public class Page {
 	 *            a block ID
 	 */
 	public synchronized void write(BlockId blk) {
-		fileMgr.write(blk, contents);
+		fileMgr.write(blk, contents());
+	}
+
+	/**
+	 * Copies the contents of the page, including its header, into the
+	 * specified array.
+	 * 
+	 * @param dst
+	 *            an array of {@link #DISK_BLOCK_SIZE} bytes
+	 */
+	public synchronized void copyTo(byte[] dst) {
+		contents().get(0, dst);
+	}
+
+	/**
+	 * Replaces the contents of the page, including its header, with the
+	 * specified array.
+	 * 
+	 * @param src
+	 *            an array of {@link #DISK_BLOCK_SIZE} bytes
+	 */
+	public synchronized void copyFrom(byte[] src) {
+		contents().put(0, src);
 	}
 
 	/**
@@ -117,7 +212,28 @@ public class Page {
 	 * @return the reference to the newly-created disk block
 	 */
 	public synchronized BlockId append(String fileName) {
-		return fileMgr.append(fileName, contents);
+		return fileMgr.append(fileName, contents());
+	}
+
+	/**
+	 * Returns the LSN stored in the page header, which is 0 if the page has
+	 * never been stamped.
+	 * 
+	 * @return the LSN of the page
+	 */
+	public synchronized long getLsn() {
+		return contents().getLong(LSN_POS);
+	}
+
+	/**
+	 * Stores the specified LSN in the page header.
+	 * 
+	 * @param lsn
+	 *            the LSN of the last log record whose modification the page
+	 *            contains
+	 */
+	public synchronized void setLsn(long lsn) {
+		contents().putLong(LSN_POS, lsn);
 	}
 
 	/**
@@ -133,23 +249,125 @@ public class Page {
 	 * @return the constant value at that offset
 	 */
 	public synchronized Constant getVal(int offset, Type type) {
-		int size;
-		byte[] byteVal = null;
-
-		// Check the length of bytes
-		if (type.isFixedSize()) {
-			size = type.maxSize();
-		} else {
-			byteVal = new byte[ByteHelper.INT_SIZE];
-			contents.get(offset, byteVal);
-			size = ByteHelper.toInteger(byteVal);
-			offset += ByteHelper.INT_SIZE;
+		switch (type.getSqlType()) {
+		case (INTEGER):
+			return new IntegerConstant(contents().getInt(HEADER_SIZE + offset));
+		case (BIGINT):
+			return new BigIntConstant(contents().getLong(HEADER_SIZE + offset));
+		case (DOUBLE):
+			return new DoubleConstant(contents().getDouble(HEADER_SIZE + offset));
+		case (VARCHAR):
+			return new VarcharConstant(contents().getString(HEADER_SIZE + offset,
+					CHARSET), type);
 		}
+		throw new UnsupportedOperationException("Unspported SQL type: "
+				+ type.getSqlType());
+	}
+
+	/**
+	 * Returns the integer at a specified offset of this page.
+	 * 
+	 * @param offset
+	 *            the byte offset within the page
+	 * @return the integer value at that offset
+	 */
+	public synchronized int getInt(int offset) {
+		return contents().getInt(HEADER_SIZE + offset);
+	}
+
+	/**
+	 * Returns the long integer at a specified offset of this page.
+	 * 
+	 * @param offset
+	 *            the byte offset within the page
+	 * @return the long value at that offset
+	 */
+	public synchronized long getLong(int offset) {
+		return contents().getLong(HEADER_SIZE + offset);
+	}
+
+	/**
+	 * Returns the double at a specified offset of this page.
+	 * 
+	 * @param offset
+	 *            the byte offset within the page
+	 * @return the double value at that offset
+	 */
+	public synchronized double getDouble(int offset) {
+		return contents().getDouble(HEADER_SIZE + offset);
+	}
+
+	/**
+	 * Returns the length-prefixed string at a specified offset of this page.
+	 * 
+	 * @param offset
+	 *            the byte offset within the page
+	 * @return the string value at that offset
+	 */
+	public synchronized String getString(int offset) {
+		return contents().getString(HEADER_SIZE + offset, CHARSET);
+	}
+
+	/**
+	 * Copies the bytes at a specified offset of this page into the specified
+	 * array, which is filled entirely.
+	 * 
+	 * @param offset
+	 *            the byte offset within the page
+	 * @param dst
+	 *            the array to be filled
+	 */
+	public synchronized void getBytes(int offset, byte[] dst) {
+		contents().get(HEADER_SIZE + offset, dst);
+	}
+
+	/**
+	 * Writes an integer to the specified offset on the page.
+	 * 
+	 * @param offset
+	 *            the byte offset within the page
+	 * @param val
+	 *            the integer to be written to the page
+	 */
+	public synchronized void setInt(int offset, int val) {
+		contents().putInt(HEADER_SIZE + offset, val);
+	}
+
+	/**
+	 * Writes a long integer to the specified offset on the page.
+	 * 
+	 * @param offset
+	 *            the byte offset within the page
+	 * @param val
+	 *            the long value to be written to the page
+	 */
+	public synchronized void setLong(int offset, long val) {
+		contents().putLong(HEADER_SIZE + offset, val);
+	}
+
+	/**
+	 * Writes a double to the specified offset on the page.
+	 * 
+	 * @param offset
+	 *            the byte offset within the page
+	 * @param val
+	 *            the double to be written to the page
+	 */
+	public synchronized void setDouble(int offset, double val) {
+		contents().putDouble(HEADER_SIZE + offset, val);
+	}
 
-		// Get bytes and translate it to Constant
-		byteVal = new byte[size];
-		contents.get(offset, byteVal);
-		return Constant.newInstance(type, byteVal);
+	/**
+	 * Writes the bytes of the specified array to the specified offset on the
+	 * page.
+	 * 
+	 * @param offset
+	 *            the byte offset within the page
+	 * @param src
+	 *            the bytes to be written to the page
+	 */
+	public synchronized void setBytes(int offset, byte[] src) {
+		contents().put(HEADER_SIZE + offset, src);
 	}
 
 	/**
@@ -162,27 +380,45 @@ public class Page {
 	 *            the constant value to be written to the page
 	 */
 	public synchronized void setVal(int offset, Constant val) {
-		byte[] byteval = val.asBytes();
-
-		// Append the size of value if it is not fixed size
-		if (!val.getType().isFixedSize()) {
-			// check the field capacity and value size
-			if (offset + ByteHelper.INT_SIZE + byteval.length > BLOCK_SIZE)
-				throw new BufferOverflowException();
-
-			byte[] sizeBytes = ByteHelper.toBytes(byteval.length);
-			contents.put(offset, sizeBytes);
-			offset += sizeBytes.length;
+		switch (val.getType().getSqlType()) {
+		case (INTEGER):
+			contents().putInt(HEADER_SIZE + offset, (Integer) val.asJavaVal());
+			return;
+		case (BIGINT):
+			contents().putLong(HEADER_SIZE + offset, (Long) val.asJavaVal());
+			return;
+		case (DOUBLE):
+			contents().putDouble(HEADER_SIZE + offset, (Double) val.asJavaVal());
+			return;
 		}
 
-		// Put bytes
-		contents.put(offset, byteval);
+		// Append the size of value since it is not fixed size, and check the
+		// field capacity and value size
+		byte[] byteval = val.asBytes();
+		if (offset + ByteHelper.INT_SIZE + byteval.length > BLOCK_SIZE)
+			throw new BufferOverflowException();
+		contents().putInt(HEADER_SIZE + offset, byteval.length);
+		contents().put(HEADER_SIZE + offset + ByteHelper.INT_SIZE, byteval);
+	}
+
+	/**
+	 * Close this page to release resources. The underlying buffer is returned
+	 * to the {@link IoAllocator} for reuse by later pages, so the page must not
+	 * be accessed afterwards; doing so throws an {@link IllegalStateException}.
+	 */
+	public synchronized void close() {
+		if (contents == null)
+			return;
+		IoAllocator.releaseIoBuffer(contents);
+		contents = null;
 	}
 
 	/**
-	 * Close this page to release resources.
+	 * Returns the buffer of the page, failing if the page has been closed.
 	 */
-	public void close() {
-		contents.close();
+	private IoBuffer contents() {
+		if (contents == null)
+			throw new IllegalStateException("the page is closed");
+		return contents;
 	}
 }
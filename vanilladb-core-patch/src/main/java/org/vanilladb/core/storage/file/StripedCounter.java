@@ -0,0 +1,41 @@
+package org.vanilladb.core.storage.file;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter whose updates are spread over several cells by thread, so that
+ * threads updating it concurrently rarely contend on the same cache line. The
+ * value is the sum of all cells.
+ */
+class StripedCounter {
+	// a power of two
+	private static final int STRIPES = 16;
+	// the number of longs in a cache line
+	private static final int PADDING = 8;
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES
+			* PADDING);
+
+	void add(long x) {
+		cells.getAndAdd(cellIndex(), x);
+	}
+
+	long sum() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++)
+			sum += cells.get(i * PADDING);
+		return sum;
+	}
+
+	void reset() {
+		for (int i = 0; i < STRIPES; i++)
+			cells.set(i * PADDING, 0);
+	}
+
+	private static int cellIndex() {
+		long id = Thread.currentThread().getId();
+		// spread consecutive thread ids over the stripes
+		int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+		return ((h >>> 16) & (STRIPES - 1)) * PADDING;
+	}
+}
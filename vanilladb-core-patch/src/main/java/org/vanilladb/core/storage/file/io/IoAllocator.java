@@ -2,6 +2,11 @@ package org.vanilladb.core.storage.file.io;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.vanilladb.core.storage.file.io.javanio.JavaNioByteBuffer;
 import org.vanilladb.core.storage.file.io.javanio.JavaNioFileChannel;
@@ -12,12 +17,31 @@ import org.vanilladb.core.util.PropertiesFetcher;
 public class IoAllocator {
 
 	private static boolean USE_O_DIRECT;
+	/**
+	 * The maximum number of released buffers kept for reuse.
+	 */
+	public static final int MAX_POOLED_BUFFERS;
 
 	static {
 		USE_O_DIRECT = PropertiesFetcher.getPropertyAsBoolean(
 				IoAllocator.class.getName() + ".USE_O_DIRECT", false);
+		MAX_POOLED_BUFFERS = PropertiesFetcher.getPropertyAsInteger(
+				IoAllocator.class.getName() + ".MAX_POOLED_BUFFERS", 256);
 	}
 
+	private static class BufferPool {
+		Queue<IoBuffer> free = new ConcurrentLinkedQueue<IoBuffer>();
+		byte[] zeros;
+
+		BufferPool(int capacity) {
+			zeros = new byte[capacity];
+		}
+	}
+
+	// the released buffers of each capacity
+	private static final ConcurrentMap<Integer, BufferPool> pools = new ConcurrentHashMap<Integer, BufferPool>();
+	private static final AtomicInteger numPooled = new AtomicInteger();
+
 	public static IoBuffer newIoBuffer(int capacity) {
 		if (USE_O_DIRECT)
 			return new JaydioDirectByteBuffer(capacity);
@@ -25,6 +49,52 @@ public class IoAllocator {
 			return new JavaNioByteBuffer(capacity);
 	}
 
+	/**
+	 * Returns a zero-filled buffer of the specified capacity, reusing a
+	 * released buffer if one is available. The buffer should be given back by
+	 * {@link #releaseIoBuffer(IoBuffer)} once it is no longer used; a buffer
+	 * that is never released is simply reclaimed by the garbage collector.
+	 * 
+	 * @param capacity
+	 *            the capacity of the buffer
+	 * @return a buffer
+	 */
+	public static IoBuffer acquireIoBuffer(int capacity) {
+		BufferPool pool = pools.get(capacity);
+		IoBuffer buffer = pool == null ? null : pool.free.poll();
+		if (buffer == null)
+			return newIoBuffer(capacity);
+		numPooled.decrementAndGet();
+		buffer.put(0, pool.zeros);
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Gives back a buffer obtained from {@link #acquireIoBuffer(int)}. The
+	 * caller must not use the buffer afterwards. The buffer is closed instead
+	 * if the pool is full.
+	 * 
+	 * @param buffer
+	 *            the buffer to be released
+	 */
+	public static void releaseIoBuffer(IoBuffer buffer) {
+		if (numPooled.incrementAndGet() > MAX_POOLED_BUFFERS) {
+			numPooled.decrementAndGet();
+			buffer.close();
+			return;
+		}
+		int capacity = buffer.capacity();
+		BufferPool pool = pools.get(capacity);
+		if (pool == null) {
+			BufferPool newPool = new BufferPool(capacity);
+			pool = pools.putIfAbsent(capacity, newPool);
+			if (pool == null)
+				pool = newPool;
+		}
+		pool.free.offer(buffer);
+	}
+
 	public static IoChannel newIoChannel(File file) throws IOException {
 		if (USE_O_DIRECT)
 			return new JaydioDirectIoChannel(file);
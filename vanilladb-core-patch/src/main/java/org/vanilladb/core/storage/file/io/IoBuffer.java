@@ -1,11 +1,32 @@
 package org.vanilladb.core.storage.file.io;
 
+import java.nio.charset.Charset;
+
 public interface IoBuffer {
 
 	IoBuffer get(int position, byte[] dst);
 
 	IoBuffer put(int position, byte[] src);
 
+	int getInt(int position);
+
+	IoBuffer putInt(int position, int val);
+
+	long getLong(int position);
+
+	IoBuffer putLong(int position, long val);
+
+	double getDouble(int position);
+
+	IoBuffer putDouble(int position, double val);
+
+	/**
+	 * Reads a string stored as a 4-byte length followed by the encoded bytes.
+	 */
+	String getString(int position, Charset charset);
+
+	int capacity();
+
 	void clear();
 
 	void rewind();
@@ -6,8 +6,25 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 public interface IoChannel {
 	
 	int read(IoBuffer buffer, long position) throws IOException;
+
+	/**
+	 * Reads a sequence of bytes into the given buffers, filling them in order,
+	 * starting at the given file position.
+	 * 
+	 * @return the number of bytes read, or -1 if the position is at or beyond
+	 *         the end of the file
+	 */
+	long read(IoBuffer[] buffers, long position) throws IOException;
 	
 	int write(IoBuffer buffer, long position) throws IOException;
+
+	/**
+	 * Writes the contents of the given buffers, in order, to the file starting
+	 * at the given file position.
+	 * 
+	 * @return the number of bytes written
+	 */
+	long write(IoBuffer[] buffers, long position) throws IOException;
 	
 	long size() throws IOException;
 	
@@ -0,0 +1,322 @@
+package org.vanilladb.core.storage.file.io.compression;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.vanilladb.core.storage.file.io.IoBuffer;
+import org.vanilladb.core.storage.file.io.IoChannel;
+
+/**
+ * A file channel that compresses each block with {@link LzCodec} before
+ * writing it to disk. Every read and write must access exactly one logical
+ * block, or a sequence of whole blocks.
+ * 
+ * <p>
+ * The compressed blocks are stored as extents in the data file, and a map
+ * file next to it holds, for each logical block, the offset, length and
+ * capacity of its extent. A block that does not compress is stored as is.
+ * </p>
+ * 
+ * <p>
+ * A rewritten block is never written over its current extent. It goes to a
+ * free extent, or to a new one at the end of the data file, and the data file
+ * is synced before the map entry is switched to it, so that the map on disk
+ * always points at complete extents. The replaced extents become free after
+ * the map is synced, and the space no map entry points at is found free again
+ * when the file is opened. Each {@link #write(IoBuffer[], long)} syncs the two
+ * files once.
+ * </p>
+ */
+public class CompressedIoChannel implements IoChannel {
+	/**
+	 * The suffix of the map file of a compressed file.
+	 */
+	public static final String MAP_FILE_SUFFIX = ".map";
+
+	// extents are allocated in multiples of this size, leaving room to grow
+	private static final int EXTENT_UNIT = 256;
+	// offset (8 bytes), length (4 bytes) and capacity (4 bytes)
+	private static final int MAP_ENTRY_SIZE = 16;
+
+	private FileChannel dataChannel, mapChannel;
+	private int blockSize;
+	private int numBlocks;
+	private long[] offsets = new long[16];
+	private int[] lengths = new int[16], capacities = new int[16];
+	private long dataEnd;
+	// the free extents, by their capacity in extent units
+	private List<Deque<Long>> freeExtents = new ArrayList<Deque<Long>>();
+	// the offsets and capacities of the extents replaced by the current
+	// write, which the map on disk may still point at
+	private List<long[]> retired = new ArrayList<long[]>();
+	private LzCodec codec = new LzCodec();
+	private byte[] raw, compressed;
+	private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Returns the map file of the specified compressed file.
+	 * 
+	 * @param file
+	 *            the data file
+	 * @return the map file
+	 */
+	public static File mapFileOf(File file) {
+		return new File(file.getParentFile(), file.getName() + MAP_FILE_SUFFIX);
+	}
+
+	/**
+	 * Opens the specified compressed file, creating it if it does not exist.
+	 * 
+	 * @param file
+	 *            the data file
+	 * @param blockSize
+	 *            the size of a logical block
+	 * @throws IOException
+	 */
+	@SuppressWarnings("resource")
+	public CompressedIoChannel(File file, int blockSize) throws IOException {
+		this.blockSize = blockSize;
+		raw = new byte[blockSize];
+		// a block is compressed only if that saves at least a byte
+		compressed = new byte[blockSize - 1];
+		dataChannel = new RandomAccessFile(file, "rw").getChannel();
+		mapChannel = new RandomAccessFile(mapFileOf(file), "rw").getChannel();
+		int maxUnits = (blockSize + EXTENT_UNIT - 1) / EXTENT_UNIT;
+		for (int i = 0; i <= maxUnits; i++)
+			freeExtents.add(new ArrayDeque<Long>());
+		loadMap();
+	}
+
+	@Override
+	public synchronized int read(IoBuffer buffer, long position)
+			throws IOException {
+		int blkNum = blockNumber(buffer, position);
+		if (blkNum >= numBlocks)
+			return -1;
+
+		int length = lengths[blkNum];
+		if (length == 0) {
+			// a block skipped over when the file grew
+			Arrays.fill(raw, (byte) 0);
+		} else if (length == blockSize) {
+			readExtent(blkNum, raw, length);
+		} else {
+			readExtent(blkNum, compressed, length);
+			LzCodec.decompress(compressed, length, raw);
+		}
+		buffer.put(0, raw);
+		return blockSize;
+	}
+
+	@Override
+	public long read(IoBuffer[] buffers, long position) throws IOException {
+		long total = 0;
+		for (IoBuffer buffer : buffers) {
+			int n = read(buffer, position + total);
+			if (n <= 0)
+				return total == 0 ? -1 : total;
+			total += n;
+		}
+		return total;
+	}
+
+	@Override
+	public int write(IoBuffer buffer, long position) throws IOException {
+		write(new IoBuffer[] { buffer }, position);
+		return blockSize;
+	}
+
+	@Override
+	public synchronized long write(IoBuffer[] buffers, long position)
+			throws IOException {
+		int firstBlk = blockNumber(buffers[0], position);
+		// the entries of the blocks the file grows by are written as well
+		int firstEntry = Math.min(firstBlk, numBlocks);
+		for (int i = 0; i < buffers.length; i++)
+			writeExtent(buffers[i], position + (long) i * blockSize);
+
+		// the map must not point at an extent before it is durable
+		dataChannel.force(false);
+		int lastBlk = firstBlk + buffers.length - 1;
+		ByteBuffer bb = ByteBuffer.allocate((lastBlk - firstEntry + 1)
+				* MAP_ENTRY_SIZE);
+		for (int blkNum = firstEntry; blkNum <= lastBlk; blkNum++)
+			bb.putLong(offsets[blkNum]).putInt(lengths[blkNum])
+					.putInt(capacities[blkNum]);
+		bb.flip();
+		while (bb.hasRemaining())
+			mapChannel.write(bb, (long) firstEntry * MAP_ENTRY_SIZE
+					+ bb.position());
+		mapChannel.force(false);
+
+		// no entry on disk points at the replaced extents any more
+		for (long[] extent : retired)
+			release(extent[0], extent[1]);
+		retired.clear();
+		return (long) buffers.length * blockSize;
+	}
+
+	/**
+	 * Compresses the block in the specified buffer and writes it to a free
+	 * extent, without updating the map file.
+	 */
+	private void writeExtent(IoBuffer buffer, long position)
+			throws IOException {
+		int blkNum = blockNumber(buffer, position);
+		buffer.get(0, raw);
+		int length = codec.compress(raw, blockSize, compressed);
+		byte[] extent = compressed;
+		if (length < 0) {
+			length = blockSize;
+			extent = raw;
+		}
+
+		// the file may grow by more than one block
+		while (numBlocks <= blkNum)
+			setEntry(numBlocks++, 0, 0, 0);
+
+		if (capacities[blkNum] > 0)
+			retired.add(new long[] { offsets[blkNum], capacities[blkNum] });
+		int capacity = (length + EXTENT_UNIT - 1) / EXTENT_UNIT * EXTENT_UNIT;
+		long offset = allocate(capacity);
+
+		ByteBuffer bb = ByteBuffer.wrap(extent, 0, length);
+		while (bb.hasRemaining())
+			dataChannel.write(bb, offset + bb.position());
+		setEntry(blkNum, offset, length, capacity);
+	}
+
+	/**
+	 * Takes a free extent of the specified capacity, splitting a larger one if
+	 * necessary, or appends one to the data file.
+	 */
+	private long allocate(int capacity) {
+		int units = capacity / EXTENT_UNIT;
+		for (int u = units; u < freeExtents.size(); u++) {
+			Long offset = freeExtents.get(u).poll();
+			if (offset != null) {
+				if (u > units)
+					release(offset + capacity, (long) (u - units)
+							* EXTENT_UNIT);
+				return offset;
+			}
+		}
+		long offset = dataEnd;
+		dataEnd += capacity;
+		return offset;
+	}
+
+	/**
+	 * Makes the specified space free, as extents no larger than a block.
+	 */
+	private void release(long offset, long size) {
+		int maxUnits = freeExtents.size() - 1;
+		while (size >= EXTENT_UNIT) {
+			int units = (int) Math.min(size / EXTENT_UNIT, maxUnits);
+			freeExtents.get(units).push(offset);
+			offset += units * EXTENT_UNIT;
+			size -= units * EXTENT_UNIT;
+		}
+	}
+
+	/**
+	 * Returns the logical size of the file, i.e. the size it would have
+	 * without compression.
+	 */
+	@Override
+	public synchronized long size() throws IOException {
+		return (long) numBlocks * blockSize;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		dataChannel.close();
+		mapChannel.close();
+	}
+
+	@Override
+	public ReentrantReadWriteLock getReadWriteLock() {
+		return lock;
+	}
+
+	/**
+	 * Returns the number of bytes the file takes on disk, including its map
+	 * file.
+	 * 
+	 * @return the physical size of the file
+	 * @throws IOException
+	 */
+	public synchronized long physicalSize() throws IOException {
+		return dataEnd + (long) numBlocks * MAP_ENTRY_SIZE;
+	}
+
+	private void readExtent(int blkNum, byte[] dst, int length)
+			throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(dst, 0, length);
+		while (bb.hasRemaining())
+			if (dataChannel.read(bb, offsets[blkNum] + bb.position()) < 0)
+				throw new IOException("extent of block " + blkNum
+						+ " is truncated");
+	}
+
+	private void loadMap() throws IOException {
+		int entries = (int) (mapChannel.size() / MAP_ENTRY_SIZE);
+		ByteBuffer bb = ByteBuffer.allocate(entries * MAP_ENTRY_SIZE);
+		while (bb.hasRemaining())
+			if (mapChannel.read(bb, bb.position()) < 0)
+				break;
+		bb.flip();
+		for (int i = 0; i < entries; i++)
+			setEntry(i, bb.getLong(), bb.getInt(), bb.getInt());
+		numBlocks = entries;
+
+		// the space between the extents in use is free, and anything after
+		// the last one is overwritten
+		Integer[] inUse = new Integer[entries];
+		int count = 0;
+		for (int i = 0; i < entries; i++)
+			if (capacities[i] > 0)
+				inUse[count++] = i;
+		Arrays.sort(inUse, 0, count, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer b1, Integer b2) {
+				return Long.compare(offsets[b1], offsets[b2]);
+			}
+		});
+		dataEnd = 0;
+		for (int i = 0; i < count; i++) {
+			int blkNum = inUse[i];
+			release(dataEnd, offsets[blkNum] - dataEnd);
+			dataEnd = offsets[blkNum] + capacities[blkNum];
+		}
+	}
+
+	private void setEntry(int blkNum, long offset, int length, int capacity) {
+		if (blkNum >= offsets.length) {
+			int newLength = Math.max(offsets.length * 2, blkNum + 1);
+			offsets = Arrays.copyOf(offsets, newLength);
+			lengths = Arrays.copyOf(lengths, newLength);
+			capacities = Arrays.copyOf(capacities, newLength);
+		}
+		offsets[blkNum] = offset;
+		lengths[blkNum] = length;
+		capacities[blkNum] = capacity;
+	}
+
+	private int blockNumber(IoBuffer buffer, long position) throws IOException {
+		if (buffer.capacity() != blockSize || position % blockSize != 0)
+			throw new IOException("unaligned access at " + position
+					+ " of a compressed file");
+		return (int) (position / blockSize);
+	}
+}
@@ -0,0 +1,148 @@
+package org.vanilladb.core.storage.file.io.compression;
+
+/**
+ * A byte-oriented LZ77 codec in the style of LZ4, trading compression ratio
+ * for speed. The compressed data is a sequence of (literals, match) pairs. Each
+ * pair starts with a token whose high 4 bits hold the number of literals and
+ * whose low 4 bits hold the match length minus {@link #MIN_MATCH}; a nibble of
+ * 15 is followed by extra length bytes, each adding up to 255. The literals
+ * follow, then a 2-byte little-endian offset back to the start of the match.
+ * The last pair has literals only.
+ */
+public class LzCodec {
+	private static final int MIN_MATCH = 4;
+	private static final int MAX_OFFSET = 0xFFFF;
+	private static final int HASH_BITS = 12;
+
+	private int[] table = new int[1 << HASH_BITS];
+
+	/**
+	 * Compresses the source bytes into the destination array.
+	 * 
+	 * @param src
+	 *            the source bytes
+	 * @param srcLen
+	 *            the number of source bytes
+	 * @param dst
+	 *            the destination array
+	 * @return the number of compressed bytes, or -1 if they do not fit into
+	 *         the destination array
+	 */
+	public int compress(byte[] src, int srcLen, byte[] dst) {
+		// positions are stored plus one, so that 0 means empty
+		for (int i = 0; i < table.length; i++)
+			table[i] = 0;
+
+		int ip = 0, anchor = 0, op = 0;
+		while (ip + MIN_MATCH <= srcLen) {
+			int seq = readInt(src, ip);
+			int h = (seq * 0x9E3779B1) >>> (32 - HASH_BITS);
+			int ref = table[h] - 1;
+			table[h] = ip + 1;
+			if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+				ip++;
+				continue;
+			}
+
+			int len = MIN_MATCH;
+			while (ip + len < srcLen && src[ref + len] == src[ip + len])
+				len++;
+			op = writeSequence(src, anchor, ip - anchor, ip - ref, len, dst, op);
+			if (op < 0)
+				return -1;
+			ip += len;
+			anchor = ip;
+		}
+		return writeSequence(src, anchor, srcLen - anchor, 0, 0, dst, op);
+	}
+
+	/**
+	 * Decompresses the source bytes into the destination array.
+	 * 
+	 * @param src
+	 *            the compressed bytes
+	 * @param srcLen
+	 *            the number of compressed bytes
+	 * @param dst
+	 *            the destination array
+	 * @return the number of decompressed bytes
+	 */
+	public static int decompress(byte[] src, int srcLen, byte[] dst) {
+		int ip = 0, op = 0;
+		while (ip < srcLen) {
+			int token = src[ip++] & 0xFF;
+
+			int litLen = token >>> 4;
+			if (litLen == 15) {
+				int b;
+				do {
+					b = src[ip++] & 0xFF;
+					litLen += b;
+				} while (b == 255);
+			}
+			System.arraycopy(src, ip, dst, op, litLen);
+			ip += litLen;
+			op += litLen;
+			if (ip >= srcLen)
+				break;
+
+			int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+			ip += 2;
+			int matchLen = token & 0x0F;
+			if (matchLen == 15) {
+				int b;
+				do {
+					b = src[ip++] & 0xFF;
+					matchLen += b;
+				} while (b == 255);
+			}
+			matchLen += MIN_MATCH;
+
+			// the match may overlap the bytes being written
+			int ref = op - offset;
+			for (int i = 0; i < matchLen; i++)
+				dst[op++] = dst[ref++];
+		}
+		return op;
+	}
+
+	private static int writeSequence(byte[] src, int litStart, int litLen,
+			int offset, int matchLen, byte[] dst, int op) {
+		int needed = 1 + litLen / 255 + 1 + litLen
+				+ (matchLen > 0 ? 2 + matchLen / 255 + 1 : 0);
+		if (op + needed > dst.length)
+			return -1;
+
+		int matchCode = matchLen > 0 ? matchLen - MIN_MATCH : 0;
+		int tokenPos = op++;
+		dst[tokenPos] = (byte) ((Math.min(litLen, 15) << 4) | Math.min(
+				matchCode, 15));
+		op = writeLength(litLen, dst, op);
+		System.arraycopy(src, litStart, dst, op, litLen);
+		op += litLen;
+
+		if (matchLen > 0) {
+			dst[op++] = (byte) offset;
+			dst[op++] = (byte) (offset >>> 8);
+			op = writeLength(matchCode, dst, op);
+		}
+		return op;
+	}
+
+	private static int writeLength(int len, byte[] dst, int op) {
+		if (len < 15)
+			return op;
+		len -= 15;
+		while (len >= 255) {
+			dst[op++] = (byte) 255;
+			len -= 255;
+		}
+		dst[op++] = (byte) len;
+		return op;
+	}
+
+	private static int readInt(byte[] b, int pos) {
+		return (b[pos] & 0xFF) | (b[pos + 1] & 0xFF) << 8
+				| (b[pos + 2] & 0xFF) << 16 | (b[pos + 3] & 0xFF) << 24;
+	}
+}
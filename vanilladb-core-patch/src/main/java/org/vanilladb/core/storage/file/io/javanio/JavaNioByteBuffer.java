@@ -1,8 +1,10 @@
 package org.vanilladb.core.storage.file.io.javanio;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 import org.vanilladb.core.storage.file.io.IoBuffer;
+import org.vanilladb.core.util.ByteHelper;
 
 public class JavaNioByteBuffer implements IoBuffer {
 
@@ -26,10 +28,57 @@ public class JavaNioByteBuffer implements IoBuffer {
 		return this;
 	}
 
+	@Override
+	public int getInt(int position) {
+		return byteBuffer.getInt(position);
+	}
+
+	@Override
+	public IoBuffer putInt(int position, int val) {
+		byteBuffer.putInt(position, val);
+		return this;
+	}
+
+	@Override
+	public long getLong(int position) {
+		return byteBuffer.getLong(position);
+	}
+
+	@Override
+	public IoBuffer putLong(int position, long val) {
+		byteBuffer.putLong(position, val);
+		return this;
+	}
+
+	@Override
+	public double getDouble(int position) {
+		return byteBuffer.getDouble(position);
+	}
+
+	@Override
+	public IoBuffer putDouble(int position, double val) {
+		byteBuffer.putDouble(position, val);
+		return this;
+	}
+
+	@Override
+	public String getString(int position, Charset charset) {
+		int size = byteBuffer.getInt(position);
+		byte[] bytes = new byte[size];
+		byteBuffer.position(position + ByteHelper.INT_SIZE);
+		byteBuffer.get(bytes);
+		return new String(bytes, charset);
+	}
+
 	ByteBuffer getByteBuffer() {
 		return byteBuffer;
 	}
 	
+	@Override
+	public int capacity() {
+		return byteBuffer.capacity();
+	}
+
 	@Override
 	public void clear() {
 		byteBuffer.clear();
@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -27,12 +28,54 @@ public class JavaNioFileChannel implements IoChannel {
 		return fileChannel.read(javaBuffer.getByteBuffer(), position);
 	}
 
+	@Override
+	public long read(IoBuffer[] buffers, long position) throws IOException {
+		ByteBuffer[] dsts = new ByteBuffer[buffers.length];
+		long remaining = 0;
+		for (int i = 0; i < buffers.length; i++) {
+			dsts[i] = ((JavaNioByteBuffer) buffers[i]).getByteBuffer();
+			remaining += dsts[i].remaining();
+		}
+
+		// the position of the channel is shared by all scattering reads
+		synchronized (this) {
+			fileChannel.position(position);
+			long total = 0;
+			while (total < remaining) {
+				long n = fileChannel.read(dsts);
+				if (n < 0)
+					return total == 0 ? -1 : total;
+				total += n;
+			}
+			return total;
+		}
+	}
+
 	@Override
 	public int write(IoBuffer buffer, long position) throws IOException {
 		JavaNioByteBuffer javaBuffer = (JavaNioByteBuffer) buffer;
 		return fileChannel.write(javaBuffer.getByteBuffer(), position);
 	}
 
+	@Override
+	public long write(IoBuffer[] buffers, long position) throws IOException {
+		ByteBuffer[] srcs = new ByteBuffer[buffers.length];
+		long remaining = 0;
+		for (int i = 0; i < buffers.length; i++) {
+			srcs[i] = ((JavaNioByteBuffer) buffers[i]).getByteBuffer();
+			remaining += srcs[i].remaining();
+		}
+
+		// the position of the channel is shared by all gathering writes
+		synchronized (this) {
+			fileChannel.position(position);
+			long total = 0;
+			while (total < remaining)
+				total += fileChannel.write(srcs);
+			return total;
+		}
+	}
+
 	@Override
 	public long size() throws IOException {
 		return fileChannel.size();
@@ -1,10 +1,13 @@
 package org.vanilladb.core.storage.file.io.jaydio;
 
+import java.nio.charset.Charset;
+
 import net.smacke.jaydio.DirectIoLib;
 import net.smacke.jaydio.buffer.AlignedDirectByteBuffer;
 
 import org.vanilladb.core.storage.file.FileMgr;
 import org.vanilladb.core.storage.file.io.IoBuffer;
+import org.vanilladb.core.util.ByteHelper;
 
 public class JaydioDirectByteBuffer implements IoBuffer {
 
@@ -29,10 +32,72 @@ public class JaydioDirectByteBuffer implements IoBuffer {
 		return this;
 	}
 	
+	@Override
+	public int getInt(int position) {
+		// the aligned buffer has only relative single-byte accessors
+		byteBuffer.position(position);
+		int ret = 0;
+		for (int i = 0; i < ByteHelper.INT_SIZE; i++) {
+			ret <<= 8;
+			ret |= (int) byteBuffer.get() & 0xFF;
+		}
+		return ret;
+	}
+
+	@Override
+	public IoBuffer putInt(int position, int val) {
+		byteBuffer.position(position);
+		for (int i = 0; i < ByteHelper.INT_SIZE; i++)
+			byteBuffer.put((byte) (val >> (ByteHelper.INT_SIZE - 1 - i) * 8));
+		return this;
+	}
+
+	@Override
+	public long getLong(int position) {
+		byteBuffer.position(position);
+		long ret = 0;
+		for (int i = 0; i < ByteHelper.LONG_SIZE; i++) {
+			ret <<= 8;
+			ret |= (long) byteBuffer.get() & 0xFF;
+		}
+		return ret;
+	}
+
+	@Override
+	public IoBuffer putLong(int position, long val) {
+		byteBuffer.position(position);
+		for (int i = 0; i < ByteHelper.LONG_SIZE; i++)
+			byteBuffer.put((byte) (val >> (ByteHelper.LONG_SIZE - 1 - i) * 8));
+		return this;
+	}
+
+	@Override
+	public double getDouble(int position) {
+		return Double.longBitsToDouble(getLong(position));
+	}
+
+	@Override
+	public IoBuffer putDouble(int position, double val) {
+		return putLong(position, Double.doubleToRawLongBits(val));
+	}
+
+	@Override
+	public String getString(int position, Charset charset) {
+		byte[] bytes = new byte[getInt(position)];
+		byteBuffer.position(position + ByteHelper.INT_SIZE);
+		byteBuffer.get(bytes);
+		return new String(bytes, charset);
+	}
+
 	AlignedDirectByteBuffer getAlignedDirectByteBuffer() {
 		return byteBuffer;
 	}
 	
+	@Override
+	public int capacity() {
+		return byteBuffer.capacity();
+	}
+
 	@Override
 	public void clear() {
 		byteBuffer.clear();
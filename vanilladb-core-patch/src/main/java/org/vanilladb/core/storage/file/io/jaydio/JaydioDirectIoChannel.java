@@ -1,45 +1,131 @@
 package org.vanilladb.core.storage.file.io.jaydio;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import net.smacke.jaydio.buffer.AlignedDirectByteBuffer;
-import net.smacke.jaydio.channel.BufferedChannel;
-import net.smacke.jaydio.channel.DirectIoByteChannel;
+import net.smacke.jaydio.DirectIoLib;
+
+import com.sun.jna.Native;
+import com.sun.jna.Platform;
 
 import org.vanilladb.core.storage.file.io.IoBuffer;
 import org.vanilladb.core.storage.file.io.IoChannel;
 
+/**
+ * A file channel opened with O_DIRECT. Reads and writes go straight between
+ * the aligned {@link JaydioDirectByteBuffer buffers} and the disk through
+ * pread/pwrite, without any intermediate buffering, so the OS page cache does
+ * not duplicate the contents of the buffer pool. All positions must be
+ * aligned to the block size of the underlying file system.
+ *
+ * <p>
+ * O_DIRECT bypasses the page cache but not the cache of the device, so each
+ * write is followed by an fdatasync, as the NIO channel opens its files in
+ * "rws" mode. A gathering write syncs once after its last buffer.
+ * </p>
+ */
 public class JaydioDirectIoChannel implements IoChannel {
 
-	private BufferedChannel<AlignedDirectByteBuffer> fileChannel;
+	private DirectIoLib lib;
+	private int fd;
+	private long fileSize;
 	private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-	
+
 	public JaydioDirectIoChannel(File file) throws IOException {
-		fileChannel = DirectIoByteChannel.getChannel(file, false);
+		String dir = file.getAbsoluteFile().getParent();
+		lib = DirectIoLib.getLibForPath(dir);
+		// the buffers are allocated for O_DIRECT, so there is no fallback
+		if (lib == null)
+			throw new IOException("O_DIRECT is not supported for " + dir
+					+ ", set IoAllocator.USE_O_DIRECT to false");
+		fd = lib.oDirectOpen(file.getAbsolutePath(), false);
+		fileSize = file.length();
+	}
+
+	/**
+	 * The fdatasync of the C library, which Jaydio does not expose.
+	 */
+	private static class LibC {
+		static {
+			Native.register(Platform.C_LIBRARY_NAME);
+		}
+
+		static native int fdatasync(int fd);
 	}
-	
+
 	@Override
 	public int read(IoBuffer buffer, long position) throws IOException {
+		checkAlignment(position);
 		JaydioDirectByteBuffer jaydioBuffer = (JaydioDirectByteBuffer) buffer;
-		return fileChannel.read(jaydioBuffer.getAlignedDirectByteBuffer(), position);
+		try {
+			return lib.pread(fd, jaydioBuffer.getAlignedDirectByteBuffer(),
+					position);
+		} catch (EOFException e) {
+			// Jaydio reports the end of the file by an exception
+			return -1;
+		}
+	}
+
+	@Override
+	public long read(IoBuffer[] buffers, long position) throws IOException {
+		// pread has no scattering counterpart, so issue one per buffer
+		long total = 0;
+		for (IoBuffer buffer : buffers) {
+			int n = read(buffer, position + total);
+			if (n <= 0)
+				return total == 0 ? -1 : total;
+			total += n;
+		}
+		return total;
 	}
 
 	@Override
 	public int write(IoBuffer buffer, long position) throws IOException {
+		int written = writeUnsynced(buffer, position);
+		sync();
+		return written;
+	}
+
+	private int writeUnsynced(IoBuffer buffer, long position)
+			throws IOException {
+		checkAlignment(position);
 		JaydioDirectByteBuffer jaydioBuffer = (JaydioDirectByteBuffer) buffer;
-		return fileChannel.write(jaydioBuffer.getAlignedDirectByteBuffer(), position);
+		// pwrite starts at the position of the buffer, which the typed
+		// accessors leave wherever they stopped
+		jaydioBuffer.clear();
+		int written = lib.pwrite(fd, jaydioBuffer.getAlignedDirectByteBuffer(),
+				position);
+
+		// the file grows by whole aligned extents
+		synchronized (this) {
+			if (position + written > fileSize)
+				fileSize = position + written;
+		}
+		return written;
 	}
-	
+
 	@Override
-	public long size() throws IOException {
-		return fileChannel.size();
+	public long write(IoBuffer[] buffers, long position) throws IOException {
+		// pwrite has no gathering counterpart, so issue one per buffer
+		long total = 0;
+		for (IoBuffer buffer : buffers)
+			total += writeUnsynced(buffer, position + total);
+		sync();
+		return total;
+	}
+
+	@Override
+	public synchronized long size() throws IOException {
+		return fileSize;
 	}
 
 	@Override
 	public void close() throws IOException {
-		fileChannel.close();
+		if (lib.close(fd) < 0)
+			throw new IOException("cannot close the file: "
+					+ DirectIoLib.getLastError());
 	}
 
 	@Override
@@ -47,4 +133,15 @@ public class JaydioDirectIoChannel implements IoChannel {
 		return lock;
 	}
 
+	private void sync() throws IOException {
+		if (LibC.fdatasync(fd) < 0)
+			throw new IOException("cannot sync the file: errno "
+					+ Native.getLastError());
+	}
+
+	private void checkAlignment(long position) throws IOException {
+		if (position % lib.blockSize() != 0)
+			throw new IOException("position " + position
+					+ " is not aligned to " + lib.blockSize() + " bytes");
+	}
 }
@@ -0,0 +1,196 @@
+package org.vanilladb.core.storage.file.io.memory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.vanilladb.core.storage.file.io.IoAllocator;
+import org.vanilladb.core.storage.file.io.IoBuffer;
+import org.vanilladb.core.storage.file.io.IoChannel;
+
+/**
+ * A file channel whose contents are kept in heap memory. The file is stored as
+ * a list of blocks, each of which has the capacity of the buffers that access
+ * it, so every read and write must be aligned to that capacity.
+ * 
+ * <p>
+ * The memory used by the channel is charged to a budget shared by all the
+ * memory channels. When a write would exceed the budget, the contents are
+ * spilled to a file on disk, and the channel delegates all subsequent
+ * operations to the channel of that file, which it acquires by
+ * {@link #acquireSpillFile()} for each operation. A channel without a budget
+ * never spills.
+ * </p>
+ */
+public abstract class MemoryIoChannel implements IoChannel {
+
+	private String fileName;
+	private AtomicLong budget;
+	private List<byte[]> blocks = new ArrayList<byte[]>();
+	private int blockSize;
+	private boolean isSpilled;
+	private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Creates an empty in-memory file.
+	 * 
+	 * @param fileName
+	 *            the name of the file
+	 * @param budget
+	 *            the number of bytes left for all memory channels, or null if
+	 *            the channel should never spill
+	 */
+	public MemoryIoChannel(String fileName, AtomicLong budget) {
+		this.fileName = fileName;
+		this.budget = budget;
+	}
+
+	/**
+	 * Returns the channel of the file on disk the contents are spilled to.
+	 * Every call is paired with a call to {@link #releaseSpillFile()}.
+	 * 
+	 * @return the channel of the spill file
+	 * @throws IOException
+	 */
+	protected abstract IoChannel acquireSpillFile() throws IOException;
+
+	/**
+	 * Releases the channel returned by {@link #acquireSpillFile()}.
+	 */
+	protected abstract void releaseSpillFile();
+
+	@Override
+	public synchronized int read(IoBuffer buffer, long position)
+			throws IOException {
+		if (isSpilled) {
+			IoChannel spilled = acquireSpillFile();
+			try {
+				return spilled.read(buffer, position);
+			} finally {
+				releaseSpillFile();
+			}
+		}
+
+		int blkNum = blockNumber(buffer, position);
+		if (blkNum >= blocks.size())
+			return -1;
+		buffer.put(0, blocks.get(blkNum));
+		return blockSize;
+	}
+
+	@Override
+	public long read(IoBuffer[] buffers, long position) throws IOException {
+		// copying between memory blocks gains nothing from batching
+		long total = 0;
+		for (IoBuffer buffer : buffers) {
+			int n = read(buffer, position + total);
+			if (n <= 0)
+				return total == 0 ? -1 : total;
+			total += n;
+		}
+		return total;
+	}
+
+	@Override
+	public synchronized int write(IoBuffer buffer, long position)
+			throws IOException {
+		int blkNum = blockNumber(buffer, position);
+		while (!isSpilled && blkNum >= blocks.size()) {
+			if (budget != null && budget.addAndGet(-blockSize) < 0) {
+				budget.addAndGet(blockSize);
+				spill();
+				break;
+			}
+			blocks.add(new byte[blockSize]);
+		}
+		if (isSpilled) {
+			IoChannel spilled = acquireSpillFile();
+			try {
+				return spilled.write(buffer, position);
+			} finally {
+				releaseSpillFile();
+			}
+		}
+		buffer.get(0, blocks.get(blkNum));
+		return blockSize;
+	}
+
+	@Override
+	public long write(IoBuffer[] buffers, long position) throws IOException {
+		long total = 0;
+		for (IoBuffer buffer : buffers)
+			total += write(buffer, position + total);
+		return total;
+	}
+
+	@Override
+	public synchronized long size() throws IOException {
+		if (isSpilled) {
+			IoChannel spilled = acquireSpillFile();
+			try {
+				return spilled.size();
+			} finally {
+				releaseSpillFile();
+			}
+		}
+		return (long) blocks.size() * blockSize;
+	}
+
+	/**
+	 * Releases the memory of the channel. The spill file, if any, is closed
+	 * by whoever provides it.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		release();
+	}
+
+	@Override
+	public ReentrantReadWriteLock getReadWriteLock() {
+		return lock;
+	}
+
+	/**
+	 * Returns true if the contents of this channel have been moved to disk.
+	 * 
+	 * @return true if the channel has spilled
+	 */
+	public synchronized boolean isSpilled() {
+		return isSpilled;
+	}
+
+	private int blockNumber(IoBuffer buffer, long position)
+			throws IOException {
+		if (blockSize == 0)
+			blockSize = buffer.capacity();
+		if (buffer.capacity() != blockSize || position % blockSize != 0)
+			throw new IOException("unaligned access at " + position
+					+ " of the in-memory file " + fileName);
+		return (int) (position / blockSize);
+	}
+
+	private void spill() throws IOException {
+		IoChannel spilled = acquireSpillFile();
+		IoBuffer buffer = IoAllocator.acquireIoBuffer(blockSize);
+		try {
+			for (int i = 0; i < blocks.size(); i++) {
+				buffer.put(0, blocks.get(i));
+				buffer.rewind();
+				spilled.write(buffer, (long) i * blockSize);
+			}
+		} finally {
+			IoAllocator.releaseIoBuffer(buffer);
+			releaseSpillFile();
+		}
+		isSpilled = true;
+		release();
+	}
+
+	private void release() {
+		if (budget != null)
+			budget.addAndGet((long) blocks.size() * blockSize);
+		blocks.clear();
+	}
+}
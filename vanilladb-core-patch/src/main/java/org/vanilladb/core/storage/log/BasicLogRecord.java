@@ -1,22 +1,87 @@
 package org.vanilladb.core.storage.log;
 
+import static java.sql.Types.BIGINT;
+import static java.sql.Types.DOUBLE;
+import static java.sql.Types.INTEGER;
+import static java.sql.Types.VARCHAR;
+
+import java.util.Arrays;
+
+import org.vanilladb.core.sql.BigIntConstant;
 import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.DoubleConstant;
+import org.vanilladb.core.sql.IntegerConstant;
 import org.vanilladb.core.sql.Type;
+import org.vanilladb.core.sql.VarcharConstant;
 import org.vanilladb.core.storage.file.Page;
+import org.vanilladb.core.util.ByteHelper;
 
 /**
  * A log record located at a specified position of a specified page. The method
  * {@link #nextVal} reads the values sequentially but has no idea what values
  * are. Thus the client is responsible for knowing how many values are in the
  * log record, and what their types are.
+ * 
+ * <p>
+ * The values are stored in a compact encoding. Each value starts with a
+ * one-byte type tag. Integers and long integers follow as zigzag varints, so
+ * that small numbers of either sign take one or two bytes, doubles follow as
+ * eight bytes, and strings follow as a varint length and their bytes.
+ * </p>
  */
 public class BasicLogRecord {
-	private Page pg;
+	private static final byte TAG_INTEGER = 1, TAG_BIGINT = 2, TAG_DOUBLE = 3,
+			TAG_VARCHAR = 4;
+
+	private static final ThreadLocal<byte[]> encodeBuf = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[256];
+		}
+	};
+
+	private byte[] rec;
 	private int pos;
+	private long lsn = -1;
 
 	/**
 	 * A log record located at the specified position of the specified page.
-	 * This constructor is called exclusively by {@link LogIterator#next()}.
+	 * This constructor is called exclusively by {@link LogIterator}.
+	 * 
+	 * @param pg
+	 *            the page containing the log record
+	 * @param pos
+	 *            the position of the log record
+	 * @param end
+	 *            the position right after the values of the log record
+	 * @param lsn
+	 *            the LSN of the log record
+	 */
+	public BasicLogRecord(Page pg, int pos, int end, long lsn) {
+		rec = new byte[end - pos];
+		pg.getBytes(pos, rec);
+		this.lsn = lsn;
+	}
+
+	/**
+	 * A log record located at the specified position of the specified page,
+	 * whose LSN is unknown.
+	 * 
+	 * @param pg
+	 *            the page containing the log record
+	 * @param pos
+	 *            the position of the log record
+	 * @param end
+	 *            the position right after the values of the log record
+	 */
+	public BasicLogRecord(Page pg, int pos, int end) {
+		rec = new byte[end - pos];
+		pg.getBytes(pos, rec);
+	}
+
+	/**
+	 * A log record located at the specified position of the specified page,
+	 * whose end is unknown. The rest of the page is read.
 	 * 
 	 * @param pg
 	 *            the page containing the log record
@@ -24,8 +89,27 @@ public class BasicLogRecord {
 	 *            the position of the log record
 	 */
 	public BasicLogRecord(Page pg, int pos) {
-		this.pg = pg;
-		this.pos = pos;
+		this(pg, pos, Page.BLOCK_SIZE);
+	}
+
+	/**
+	 * Returns the LSN of this log record, or -1 if it is unknown.
+	 * 
+	 * @return the LSN of this log record
+	 */
+	public long getLsn() {
+		return lsn;
+	}
+
+	/**
+	 * Returns true if this log record has values not read yet. Some records,
+	 * such as the checkpoint records, may have trailing values that older
+	 * readers ignore.
+	 * 
+	 * @return true if there is a next value
+	 */
+	public boolean hasNextVal() {
+		return pos < rec.length;
 	}
 
 	/**
@@ -34,8 +118,99 @@ public class BasicLogRecord {
 	 * @return the next value
 	 */
 	public Constant nextVal(Type type) {
-		Constant val = pg.getVal(pos, type);
-		pos += Page.size(val);
-		return val;
+		byte tag = rec[pos++];
+		switch (tag) {
+		case TAG_INTEGER:
+			return new IntegerConstant((int) readZigzag());
+		case TAG_BIGINT:
+			return new BigIntConstant(readZigzag());
+		case TAG_DOUBLE:
+			pos += ByteHelper.DOUBLE_SIZE;
+			return new DoubleConstant(ByteHelper.toDouble(Arrays.copyOfRange(
+					rec, pos - ByteHelper.DOUBLE_SIZE, pos)));
+		case TAG_VARCHAR:
+			int len = (int) readVarint();
+			pos += len;
+			return new VarcharConstant(Arrays.copyOfRange(rec, pos - len, pos),
+					type);
+		}
+		throw new UnsupportedOperationException("unknown log value tag " + tag);
+	}
+
+	/**
+	 * Encodes the specified values of a log record.
+	 * 
+	 * @param vals
+	 *            the values of the log record
+	 * @return the encoded values
+	 */
+	static byte[] encode(Constant[] vals) {
+		byte[] buf = encodeBuf.get();
+		int n = 0;
+		for (Constant val : vals) {
+			byte[] bytes = null;
+			int maxLen = 11;
+			if (val.getType().getSqlType() == VARCHAR) {
+				bytes = val.asBytes();
+				maxLen = 6 + bytes.length;
+			}
+			if (n + maxLen > buf.length) {
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, n + maxLen));
+				encodeBuf.set(buf);
+			}
+
+			switch (val.getType().getSqlType()) {
+			case INTEGER:
+				buf[n++] = TAG_INTEGER;
+				int i = (Integer) val.asJavaVal();
+				n = writeVarint(buf, n, ((i << 1) ^ (i >> 31)) & 0xFFFFFFFFL);
+				break;
+			case BIGINT:
+				buf[n++] = TAG_BIGINT;
+				long l = (Long) val.asJavaVal();
+				n = writeVarint(buf, n, (l << 1) ^ (l >> 63));
+				break;
+			case DOUBLE:
+				buf[n++] = TAG_DOUBLE;
+				System.arraycopy(val.asBytes(), 0, buf, n,
+						ByteHelper.DOUBLE_SIZE);
+				n += ByteHelper.DOUBLE_SIZE;
+				break;
+			case VARCHAR:
+				buf[n++] = TAG_VARCHAR;
+				n = writeVarint(buf, n, bytes.length);
+				System.arraycopy(bytes, 0, buf, n, bytes.length);
+				n += bytes.length;
+				break;
+			default:
+				throw new UnsupportedOperationException("Unspported SQL type: "
+						+ val.getType().getSqlType());
+			}
+		}
+		return Arrays.copyOf(buf, n);
+	}
+
+	private static int writeVarint(byte[] buf, int n, long val) {
+		while ((val & ~0x7FL) != 0) {
+			buf[n++] = (byte) ((val & 0x7F) | 0x80);
+			val >>>= 7;
+		}
+		buf[n++] = (byte) val;
+		return n;
+	}
+
+	private long readVarint() {
+		long val = 0;
+		for (int shift = 0;; shift += 7) {
+			byte b = rec[pos++];
+			val |= (long) (b & 0x7F) << shift;
+			if (b >= 0)
+				return val;
+		}
+	}
+
+	private long readZigzag() {
+		long val = readVarint();
+		return (val >>> 1) ^ -(val & 1);
 	}
 }
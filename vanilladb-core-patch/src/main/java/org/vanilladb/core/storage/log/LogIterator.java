@@ -2,30 +2,72 @@ package org.vanilladb.core.storage.log;
 
 import static org.vanilladb.core.sql.Type.INTEGER;
 
-import org.vanilladb.core.storage.file.BlockId;
+import java.util.Arrays;
+
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.server.task.Task;
 import org.vanilladb.core.storage.file.Page;
 import org.vanilladb.core.storage.tx.recovery.ReversibleIterator;
+import org.vanilladb.core.util.PropertiesFetcher;
 
 /**
  * A class that provides the ability to move through the records of the log file
  * in reverse order.
+ * 
+ * <p>
+ * The iterator reads the log block by block at first, so that short scans
+ * such as rollbacks read no more than they need. Once it has moved through
+ * {@link #READ_AHEAD_BLOCKS} blocks, it reads the log in windows of that many
+ * adjacent blocks with a single request, and prefetches the next window in
+ * the scan direction on the task manager while the current one is consumed.
+ * The iterator should be closed by {@link #close()} to release its pages.
+ * </p>
  */
 public class LogIterator implements ReversibleIterator<BasicLogRecord> {
-	private BlockId blk;
-	private Page pg = new Page();
+	/**
+	 * The number of log blocks read by one request.
+	 */
+	public static final int READ_AHEAD_BLOCKS;
+
+	static {
+		READ_AHEAD_BLOCKS = Math.max(1, PropertiesFetcher.getPropertyAsInteger(
+				LogIterator.class.getName() + ".READ_AHEAD_BLOCKS", 16));
+	}
+
+	private long blkNum, endBlkNum, firstBlkNum;
+	private Page pg;
 	private int currentRec;
-	private BlockId endBlk;
 	private boolean isForward = true;
 
+	// the window of blocks starting from windowStart, and its spare
+	private Page[] window, spareWindow;
+	private long windowStart;
+	private int windowCount;
+	private Prefetch prefetch;
+	// the number of blocks moved through before windows are used
+	private int blocksMoved;
+	private boolean isClosed;
+
 	/**
 	 * Creates an iterator for the records in the log file, positioned after the
 	 * last log record. This constructor is called exclusively by
 	 * {@link LogMgr#iterator()}.
+	 * 
+	 * @param logMgr
+	 *            the log manager that knows the first block of the log
+	 * @param blkNum
+	 *            the number of the last block of the log
 	 */
-	public LogIterator(BlockId blk) {
-		this.blk = this.endBlk = blk;
-		pg.read(blk);
-		currentRec = (Integer) pg.getVal(LogMgr.LAST_POS, INTEGER).asJavaVal();
+	LogIterator(LogMgr logMgr, long blkNum) {
+		this.blkNum = this.endBlkNum = blkNum;
+		firstBlkNum = logMgr.firstBlock();
+		// short scans, such as rollbacks, may never leave the last block
+		pg = new Page();
+		pg.read(LogMgr.logBlock(blkNum));
+		window = new Page[] { pg };
+		windowStart = blkNum;
+		windowCount = 1;
+		currentRec = pg.getInt(LogMgr.LAST_POS);
 	}
 
 	/**
@@ -40,7 +82,7 @@ public class LogIterator implements ReversibleIterator<BasicLogRecord> {
 			currentRec = currentRec - Page.maxSize(INTEGER);
 			isForward = true;
 		}
-		return currentRec > 0 || blk.number() > 0;
+		return currentRec > 0 || blkNum > firstBlkNum;
 	}
 
 	/**
@@ -58,8 +100,12 @@ public class LogIterator implements ReversibleIterator<BasicLogRecord> {
 		}
 		if (currentRec == 0)
 			moveToNextBlock();
-		currentRec = (Integer) pg.getVal(currentRec, INTEGER).asJavaVal();
-		return new BasicLogRecord(pg, currentRec + Page.maxSize(INTEGER) * 2);
+		// the values of the record end at its pointer to the previous record
+		int end = currentRec;
+		currentRec = pg.getInt(currentRec);
+		int start = currentRec + Page.maxSize(INTEGER) * 2;
+		return new BasicLogRecord(pg, start, end, blkNum * Page.BLOCK_SIZE
+				+ start);
 	}
 
 	@Override
@@ -73,9 +119,8 @@ public class LogIterator implements ReversibleIterator<BasicLogRecord> {
 			currentRec = currentRec + Page.maxSize(INTEGER);
 			isForward = false;
 		}
-		return (blk.number() < endBlk.number())
-				|| (currentRec < (Integer) pg.getVal(LogMgr.LAST_POS, INTEGER)
-						.asJavaVal() && blk.number() <= endBlk.number());
+		return (blkNum < endBlkNum)
+				|| (currentRec < pg.getInt(LogMgr.LAST_POS) && blkNum <= endBlkNum);
 	}
 
 	@Override
@@ -85,13 +130,13 @@ public class LogIterator implements ReversibleIterator<BasicLogRecord> {
 			isForward = false;
 		}
 		// if the currentRec point back to the front
-		if (currentRec > (Integer) pg.getVal(currentRec, INTEGER).asJavaVal())
+		if (currentRec > pg.getInt(currentRec))
 			moveToPrevBlock();
 
-		BasicLogRecord record = new BasicLogRecord(pg, currentRec + Page.maxSize(INTEGER));
-		currentRec = (Integer) pg.getVal(currentRec, INTEGER).asJavaVal();
-		return record;
-
+		int start = currentRec + Page.maxSize(INTEGER);
+		currentRec = pg.getInt(currentRec);
+		return new BasicLogRecord(pg, start, currentRec
+				- Page.maxSize(INTEGER), blkNum * Page.BLOCK_SIZE + start);
 	}
 
 	/**
@@ -99,9 +144,8 @@ public class LogIterator implements ReversibleIterator<BasicLogRecord> {
 	 * last record in that block.
 	 */
 	private void moveToNextBlock() {
-		blk = new BlockId(blk.fileName(), blk.number() - 1);
-		pg.read(blk);
-		currentRec = (Integer) pg.getVal(LogMgr.LAST_POS, INTEGER).asJavaVal();
+		moveToBlock(blkNum - 1, false);
+		currentRec = pg.getInt(LogMgr.LAST_POS);
 	}
 
 	/**
@@ -109,8 +153,166 @@ public class LogIterator implements ReversibleIterator<BasicLogRecord> {
 	 * the last record in that block.
 	 */
 	private void moveToPrevBlock() {
-		blk = new BlockId(blk.fileName(), blk.number() + 1);
-		pg.read(blk);
+		moveToBlock(blkNum + 1, true);
 		currentRec = 0 + Page.maxSize(INTEGER);
 	}
+
+	private void moveToBlock(long target, boolean toEnd) {
+		blkNum = target;
+		if (target >= windowStart && target < windowStart + windowCount) {
+			pg = window[(int) (target - windowStart)];
+			return;
+		}
+		if (blocksMoved < READ_AHEAD_BLOCKS) {
+			blocksMoved++;
+			pg.read(LogMgr.logBlock(target));
+			windowStart = target;
+			return;
+		}
+		loadWindow(target, toEnd);
+		pg = window[(int) (target - windowStart)];
+	}
+
+	/**
+	 * Closes the iterator. A read ahead in progress is waited for or
+	 * cancelled, and the pages of the iterator are released. The iterator
+	 * must not be used afterwards.
+	 */
+	public void close() {
+		if (isClosed)
+			return;
+		isClosed = true;
+		if (prefetch != null) {
+			prefetch.await();
+			prefetch = null;
+		}
+		for (Page page : window)
+			page.close();
+		if (spareWindow != null)
+			for (Page page : spareWindow)
+				page.close();
+	}
+
+	/**
+	 * Loads the window containing the target block and extending in the scan
+	 * direction, and starts prefetching the window after it.
+	 */
+	private void loadWindow(long target, boolean toEnd) {
+		long start = windowStart(target, toEnd);
+		int count = windowCount(start, target, toEnd);
+
+		if (spareWindow == null) {
+			window[0].close();
+			window = newWindow();
+			spareWindow = newWindow();
+		}
+
+		Prefetch p = prefetch;
+		prefetch = null;
+		if (p != null && p.await() && p.start == start && p.count == count) {
+			spareWindow = window;
+			window = p.pages;
+		} else {
+			if (p != null)
+				spareWindow = p.pages;
+			Page.readBlocks(LogMgr.logBlock(start), Arrays.copyOf(window, count));
+		}
+		windowStart = start;
+		windowCount = count;
+
+		long next = toEnd ? start + count : start - 1;
+		if (next >= firstBlkNum && next <= endBlkNum
+				&& VanillaDb.taskMgr() != null) {
+			long nextStart = windowStart(next, toEnd);
+			prefetch = new Prefetch(nextStart, windowCount(nextStart, next,
+					toEnd), spareWindow);
+			VanillaDb.taskMgr().runTask(prefetch);
+		}
+	}
+
+	/**
+	 * Returns the first block of the window containing the target block. A
+	 * window never crosses a segment file or the ends of the log.
+	 */
+	private long windowStart(long target, boolean toEnd) {
+		if (toEnd)
+			return target;
+		long segStart = target - target % LogMgr.SEGMENT_BLOCKS;
+		return Math.max(target - READ_AHEAD_BLOCKS + 1,
+				Math.max(firstBlkNum, segStart));
+	}
+
+	private int windowCount(long start, long target, boolean toEnd) {
+		if (!toEnd)
+			return (int) (target - start + 1);
+		long segEnd = start - start % LogMgr.SEGMENT_BLOCKS
+				+ LogMgr.SEGMENT_BLOCKS - 1;
+		long end = Math.min(start + READ_AHEAD_BLOCKS - 1,
+				Math.min(endBlkNum, segEnd));
+		return (int) (end - start + 1);
+	}
+
+	private Page[] newWindow() {
+		Page[] pages = new Page[READ_AHEAD_BLOCKS];
+		for (int i = 0; i < pages.length; i++)
+			pages[i] = new Page();
+		return pages;
+	}
+
+	/**
+	 * An asynchronous read of a window. An iterator that needs the window
+	 * before the read has started cancels it and reads the window itself, so
+	 * it never waits for a busy task manager.
+	 */
+	private class Prefetch extends Task {
+		private long start;
+		private int count;
+		private Page[] pages;
+		private boolean started, cancelled, done, failed;
+
+		Prefetch(long start, int count, Page[] pages) {
+			this.start = start;
+			this.count = count;
+			this.pages = pages;
+		}
+
+		@Override
+		public void run() {
+			synchronized (this) {
+				if (cancelled)
+					return;
+				started = true;
+			}
+			try {
+				Page.readBlocks(LogMgr.logBlock(start),
+						Arrays.copyOf(pages, count));
+			} catch (RuntimeException e) {
+				failed = true;
+			} finally {
+				synchronized (this) {
+					done = true;
+					notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * Waits for the read to finish, or cancels it if it has not started.
+		 * 
+		 * @return true if the pages hold the window
+		 */
+		synchronized boolean await() {
+			if (!started) {
+				cancelled = true;
+				return false;
+			}
+			try {
+				while (!done)
+					wait();
+			} catch (InterruptedException e) {
+				throw new RuntimeException("interrupted while reading the log");
+			}
+			return !failed;
+		}
+	}
 }
@@ -1,11 +1,20 @@
 package org.vanilladb.core.storage.log;
 
+import static org.vanilladb.core.sql.Type.BIGINT;
 import static org.vanilladb.core.sql.Type.INTEGER;
 import static org.vanilladb.core.storage.file.Page.BLOCK_SIZE;
 
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 import org.vanilladb.core.server.VanillaDb;
 import org.vanilladb.core.sql.Constant;
-import org.vanilladb.core.sql.IntegerConstant;
 import org.vanilladb.core.storage.file.BlockId;
 import org.vanilladb.core.storage.file.FileMgr;
 import org.vanilladb.core.storage.file.Page;
@@ -18,27 +27,171 @@ import org.vanilladb.core.util.PropertiesFetcher;
  * string values. The log manager does not understand the meaning of these
  * values, which are written and read by the
  * {@link org.vanilladb.core.storage.tx.recovery.RecoveryMgr recovery manager}.
+ * 
+ * <p>
+ * Appending a record takes three steps. The space of the record is reserved
+ * by advancing the tail of the log with a compare-and-set, so appenders do not
+ * block each other. The record is then copied into its log page concurrently
+ * with the records of other appenders. Finally, the record is published after
+ * all the records reserved before it, so that the published part of the log
+ * never has holes. The log writer only writes published records.
+ * </p>
+ * 
+ * <p>
+ * The log is stored in a sequence of preallocated segment files of
+ * {@link #SEGMENT_BLOCKS} blocks each, named after {@link #LOG_FILE} and the
+ * sequence number of the segment. The first block of a segment file is a
+ * header that records its sequence number and the first block of the log, and
+ * every log block ends with its own block number, so that blocks left over in
+ * a recycled file are not mistaken for log records. Segments that are no
+ * longer needed are renamed to become the next segments instead of being
+ * deleted.
+ * </p>
  */
 public class LogMgr implements Iterable<BasicLogRecord> {
+	private static Logger logger = Logger.getLogger(LogMgr.class.getName());
+
 	/**
 	 * The location where the pointer to the last integer in the page is. A
 	 * value of 0 means that the pointer is the first value in the page.
 	 */
 	public static final int LAST_POS = 0;
 	public static final String LOG_FILE;
+	/**
+	 * The time, in microseconds, the log writer waits for other committing
+	 * transactions to join a requested log write. 0 means no waiting;
+	 * transactions arriving during a write are still batched into the next
+	 * one.
+	 */
+	public static final long GROUP_COMMIT_WINDOW;
+	/**
+	 * The number of in-memory log pages. Appenders fill the pages in turn
+	 * while the log writer drains the full ones to disk, so an append waits
+	 * only when all the pages are full.
+	 */
+	public static final int LOG_BUFFER_PAGES;
+	/**
+	 * The number of log blocks in a segment file, excluding its header block.
+	 */
+	public static final int SEGMENT_BLOCKS;
+	/**
+	 * The maximum number of unused segment files kept ready for the log to
+	 * grow into. Recycled segments beyond this number are deleted.
+	 */
+	public static final int MAX_SPARE_SEGMENTS;
+	/**
+	 * The maximum time, in milliseconds, a record passed to
+	 * {@link #requestFlush(long)} stays in memory before the log writer
+	 * writes it.
+	 */
+	public static final long ASYNC_FLUSH_INTERVAL;
+	/**
+	 * The number of bytes of records passed to {@link #requestFlush(long)}
+	 * that makes the log writer write them without waiting for
+	 * {@link #ASYNC_FLUSH_INTERVAL}.
+	 */
+	public static final long ASYNC_FLUSH_BYTES;
+	/**
+	 * The number of bytes of records a transaction buffers by
+	 * {@link #appendLocal(long, Constant[])} before they are merged into the
+	 * log.
+	 */
+	public static final int LOCAL_BUFFER_BYTES;
+	/**
+	 * The LSN that stands for a log record buffered locally by a transaction,
+	 * whose real LSN is not known until it is merged into the log.
+	 */
+	public static final long LOCAL_LSN = -2;
 
-	private Page myPage = new Page();
-	private BlockId currentBlk;
-	private int currentPos;
+	// the number of times an appender yields to its predecessor before it
+	// blocks
+	private static final int PUBLISH_SPINS = 64;
+
+	// the size of the two pointers at the end of each record
+	private static final int POINTERS_SIZE = Page.maxSize(INTEGER) * 2;
+
+	// the position of the block number at the end of each log block
+	private static final int BLOCK_STAMP = BLOCK_SIZE - Page.maxSize(BIGINT);
+
+	// the layout of the header block of a segment file
+	private static final int HEADER_MAGIC = 0x564C4F47;
+	private static final int MAGIC_POS = 0, SEQ_POS = 4,
+			FIRST_BLOCK_POS = 12;
+
+	private static class LocalLog {
+		byte[][] recs = new byte[16][];
+		int count;
+		// the bytes the records will take in the log
+		int size;
+		// no record of the buffer is merged at or before this LSN
+		long lsnBound;
+	}
+
+	private static class LogBufferPage {
+		Page page = new Page();
+		// the position right after the last published record in the page
+		volatile int endPos;
+	}
+
+	// block n of the log is buffered in page n % LOG_BUFFER_PAGES
+	private LogBufferPage[] ring;
+
+	// the offsets, from the start of the log file, right after the last
+	// reserved record and the last published record
+	private AtomicLong tail = new AtomicLong();
+	private volatile long published;
+	// the appenders blocked until their predecessors publish
+	private AtomicInteger publishWaiters = new AtomicInteger();
+	private Object publishLock = new Object();
+
+	// the first block that has not been written since it became full
+	private volatile long nextBlkToWrite;
+
+	// the segments whose files exist and whose header has been written, and
+	// the first block of the log; guarded by segmentLock
+	private Object segmentLock = new Object();
+	private long lastPreparedSeg = -1, headerSeg = -1;
+	private volatile long firstBlk;
+	private Page headerPage = new Page();
+
+	// the LSNs of the last durable record and the last record requested to be
+	// durable, and whether the writer is busy
+	private long durableLsn, requestedLsn;
+	private boolean isWriting;
+	// the error that stopped the log writer, if any
+	private volatile RuntimeException writeFailure;
+	// the LSN of the last record requested to be durable without waiting, and
+	// the time by which it must be written
+	private long lazyLsn, lazyDeadline;
+	private Page flushPage = new Page();
+	private byte[] flushBuf = new byte[Page.DISK_BLOCK_SIZE];
+
+	// the records buffered by the transactions, by transaction number
+	private Map<Long, LocalLog> localLogs = new ConcurrentHashMap<Long, LocalLog>();
 
 	static {
 		LOG_FILE = PropertiesFetcher.getPropertyAsString(LogMgr.class.getName()
 				+ ".LOG_FILE", "vanilladb.log");
+		GROUP_COMMIT_WINDOW = PropertiesFetcher.getPropertyAsLong(
+				LogMgr.class.getName() + ".GROUP_COMMIT_WINDOW", 0);
+		LOG_BUFFER_PAGES = Math.max(2, PropertiesFetcher.getPropertyAsInteger(
+				LogMgr.class.getName() + ".LOG_BUFFER_PAGES", 8));
+		SEGMENT_BLOCKS = Math.max(LOG_BUFFER_PAGES,
+				PropertiesFetcher.getPropertyAsInteger(LogMgr.class.getName()
+						+ ".SEGMENT_BLOCKS", 1024));
+		MAX_SPARE_SEGMENTS = PropertiesFetcher.getPropertyAsInteger(
+				LogMgr.class.getName() + ".MAX_SPARE_SEGMENTS", 2);
+		ASYNC_FLUSH_INTERVAL = PropertiesFetcher.getPropertyAsLong(
+				LogMgr.class.getName() + ".ASYNC_FLUSH_INTERVAL", 10);
+		ASYNC_FLUSH_BYTES = PropertiesFetcher.getPropertyAsLong(
+				LogMgr.class.getName() + ".ASYNC_FLUSH_BYTES", 65536);
+		LOCAL_BUFFER_BYTES = PropertiesFetcher.getPropertyAsInteger(
+				LogMgr.class.getName() + ".LOCAL_BUFFER_BYTES", 2048);
 	}
 
 	/**
-	 * Creates the manager for the specified log file. If the log file does not
-	 * yet exist, it is created with an empty first block. This constructor
+	 * Creates the manager for the log files. If there is no log segment yet,
+	 * the first one is created with an empty first block. This constructor
 	 * depends on a {@link FileMgr} object that it gets from the method
 	 * {@link VanillaDb#fileMgr()}. That object is created during system
 	 * initialization. Thus this constructor cannot be called until
@@ -46,38 +199,99 @@ public class LogMgr implements Iterable<BasicLogRecord> {
 	 * 
 	 */
 	public LogMgr() {
-		long logsize = VanillaDb.fileMgr().size(LOG_FILE);
-		if (logsize == 0)
-			appendNewBlock();
-		else {
-			currentBlk = new BlockId(LOG_FILE, logsize - 1);
-			myPage.read(currentBlk);
-			currentPos = getLastRecordPosition() + Page.maxSize(INTEGER) * 2;
-		}
+		ring = new LogBufferPage[LOG_BUFFER_PAGES];
+		for (int i = 0; i < ring.length; i++)
+			ring[i] = new LogBufferPage();
+
+		openSegments();
+
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLog();
+			}
+		}, "LogWriter");
+		writer.setDaemon(true);
+		writer.start();
 	}
 
 	/**
 	 * Ensures that the log records corresponding to the specified LSN has been
 	 * written to disk. All earlier log records will also be written to disk.
+	 * Nothing is written if the record is already durable.
+	 * 
+	 * <p>
+	 * The write is done by the log writer, which serves all the transactions
+	 * waiting at the same time with a single write (group commit).
+	 * </p>
 	 * 
 	 * @param lsn
 	 *            the LSN of a log record
 	 */
 	public synchronized void flush(long lsn) {
-		if (lsn >= currentLSN())
-			flush();
+		if (lsn <= durableLsn)
+			return;
+		long lastLsn = Math.max(lsn, published - 1);
+		if (requestedLsn < lastLsn) {
+			requestedLsn = lastLsn;
+			notifyAll();
+		}
+		try {
+			while (durableLsn < lsn) {
+				checkWriter();
+				wait();
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException("interrupted while flushing log");
+		}
+	}
+
+	/**
+	 * Asks the log writer to write the log records up to the specified LSN to
+	 * disk, without waiting for them. The records are written within
+	 * {@link #ASYNC_FLUSH_INTERVAL} milliseconds, or as soon as
+	 * {@link #ASYNC_FLUSH_BYTES} bytes of such records are pending, unless a
+	 * {@link #flush(long)} writes them earlier.
+	 * 
+	 * @param lsn
+	 *            the LSN of a log record
+	 */
+	public synchronized void requestFlush(long lsn) {
+		if (lsn <= durableLsn)
+			return;
+		checkWriter();
+		if (lsn <= lazyLsn)
+			return;
+		if (lazyLsn <= durableLsn)
+			lazyDeadline = System.currentTimeMillis() + ASYNC_FLUSH_INTERVAL;
+		lazyLsn = lsn;
+		if (lsn - durableLsn >= ASYNC_FLUSH_BYTES && requestedLsn < lsn)
+			requestedLsn = lsn;
+		notifyAll();
+	}
+
+	/**
+	 * Returns an LSN that is not smaller than the LSN of any record appended
+	 * so far. Flushing the log to this LSN makes all those records durable.
+	 * 
+	 * @return the LSN at the end of the log
+	 */
+	public long endLsn() {
+		return published - 1;
 	}
 
 	/**
 	 * Returns an iterator for the log records, which will be returned in
-	 * reverse order starting with the most recent.
+	 * reverse order starting with the most recent. The iterator is a
+	 * {@link LogIterator}, which the caller should close.
 	 * 
 	 * @see java.lang.Iterable#iterator()
 	 */
 	@Override
 	public synchronized ReversibleIterator<BasicLogRecord> iterator() {
-		flush();
-		return new LogIterator(currentBlk);
+		long end = published;
+		flush(end - 1);
+		return new LogIterator(this, end / BLOCK_SIZE);
 	}
 
 	/**
@@ -91,103 +305,682 @@ public class LogMgr implements Iterable<BasicLogRecord> {
 	 *            the list of values
 	 * @return the LSN of the log record
 	 */
-	public synchronized long append(Constant[] rec) {
-		// two integers that point to the previous and next log records
-		int recsize = Page.maxSize(INTEGER) * 2;
-		for (Constant c : rec)
-			recsize += Page.size(c);
+	public long append(Constant[] rec) {
+		return append(new Constant[][] { rec });
+	}
+
+	/**
+	 * Appends a sequence of log records to the file. The records are reserved
+	 * together and placed one after another, so that no record of another
+	 * appender comes between them, unless they do not fit in a log block and
+	 * have to be appended one by one.
+	 * 
+	 * @param recs
+	 *            the lists of values of the records
+	 * @return the LSN of the last log record
+	 */
+	public long append(Constant[][] recs) {
+		checkWriter();
+		byte[][] vals = new byte[recs.length][];
+		for (int i = 0; i < recs.length; i++)
+			vals[i] = encode(recs[i]);
+		return append(vals, vals.length);
+	}
+
+	/**
+	 * Buffers a log record of the specified transaction in memory local to
+	 * the transaction, instead of appending it to the shared log. The local
+	 * records are copied into the log together, in a single reservation, by
+	 * {@link #mergeLocal(long)}, which is also called here once the local
+	 * records reach {@link #LOCAL_BUFFER_BYTES}. A local record has no LSN
+	 * until it is merged, so the transaction must merge its records before
+	 * the pages it modified are written, and before it commits or rolls back.
+	 * 
+	 * @param txNum
+	 *            the number of the transaction
+	 * @param rec
+	 *            the list of values
+	 */
+	public void appendLocal(long txNum, Constant[] rec) {
+		byte[] vals = encode(rec);
+		LocalLog local = localLogs.get(txNum);
+		if (local == null) {
+			local = new LocalLog();
+			local.lsnBound = endLsn();
+			localLogs.put(txNum, local);
+		}
+		int recsize = vals.length + POINTERS_SIZE;
+		synchronized (local) {
+			if (local.size > 0 && local.size + recsize > LOCAL_BUFFER_BYTES)
+				mergeLocal(local);
+			if (local.count == local.recs.length)
+				local.recs = Arrays.copyOf(local.recs, local.count * 2);
+			local.recs[local.count++] = vals;
+			local.size += recsize;
+		}
+	}
+
+	/**
+	 * Returns an LSN smaller than the LSN of every log record buffered locally
+	 * by the specified transaction, including those not merged yet.
+	 * 
+	 * @param txNum
+	 *            the number of the transaction
+	 * @return the LSN bound of the local records
+	 */
+	public long localLsnBound(long txNum) {
+		LocalLog local = localLogs.get(txNum);
+		return local == null ? endLsn() : local.lsnBound;
+	}
+
+	/**
+	 * Appends the log records buffered locally by the specified transaction
+	 * to the log, in a single reservation. This method may be called by any
+	 * thread.
+	 * 
+	 * @param txNum
+	 *            the number of the transaction
+	 * @return the LSN of the last merged record, or -1 if there is none
+	 */
+	public long mergeLocal(long txNum) {
+		return mergeLocal(txNum, new Constant[0][], false);
+	}
+
+	/**
+	 * Appends the log records buffered locally by the specified transaction,
+	 * followed by the specified records, to the log in a single reservation,
+	 * and discards the local buffer of the transaction. This method is meant
+	 * for the last records of a transaction, such as its commit record.
+	 * 
+	 * @param txNum
+	 *            the number of the transaction
+	 * @param recs
+	 *            the lists of values of the records following the local ones
+	 * @return the LSN of the last record, or -1 if there is none
+	 */
+	public long closeLocal(long txNum, Constant[][] recs) {
+		return mergeLocal(txNum, recs, true);
+	}
+
+	private long mergeLocal(long txNum, Constant[][] recs, boolean isClosing) {
+		byte[][] vals = new byte[recs.length][];
+		for (int i = 0; i < recs.length; i++)
+			vals[i] = encode(recs[i]);
+		LocalLog local = localLogs.get(txNum);
+		if (local == null)
+			return vals.length > 0 ? append(vals, vals.length) : -1;
+		synchronized (local) {
+			if (local.count + vals.length > local.recs.length)
+				local.recs = Arrays.copyOf(local.recs, local.count
+						+ vals.length);
+			System.arraycopy(vals, 0, local.recs, local.count, vals.length);
+			local.count += vals.length;
+			long lsn = mergeLocal(local);
+			// a page writer looking for the records waits until they are
+			// merged, then finds the buffer empty
+			if (isClosing)
+				localLogs.remove(txNum);
+			return lsn;
+		}
+	}
+
+	/**
+	 * Appends the records of the specified local buffer to the log. The
+	 * caller must hold the monitor of the buffer.
+	 */
+	private long mergeLocal(LocalLog local) {
+		if (local.count == 0)
+			return -1;
+		long lsn = append(local.recs, local.count);
+		Arrays.fill(local.recs, 0, local.count, null);
+		local.count = 0;
+		local.size = 0;
+		return lsn;
+	}
+
+	private byte[] encode(Constant[] rec) {
+		byte[] vals = BasicLogRecord.encode(rec);
+		int recsize = vals.length + POINTERS_SIZE;
+		if (recsize + POINTERS_SIZE >= BLOCK_STAMP)
+			throw new IllegalArgumentException("a log record of " + recsize
+					+ " bytes does not fit in a log block");
+		return vals;
+	}
+
+	/**
+	 * Appends the first count encoded records with a single reservation,
+	 * unless they do not fit in a log block together.
+	 */
+	private long append(byte[][] vals, int count) {
+		int batchSize = 0;
+		for (int i = 0; i < count; i++)
+			batchSize += vals[i].length + POINTERS_SIZE;
+		if (batchSize + POINTERS_SIZE >= BLOCK_STAMP) {
+			long lsn = -1;
+			for (int i = 0; i < count; i++)
+				lsn = append(new byte[][] { vals[i] }, 1);
+			return lsn;
+		}
 
-		// if the log record doesn't fit, move to the next block
-		if (currentPos + recsize >= BLOCK_SIZE) {
-			flush();
-			appendNewBlock();
+		// reserve the space; if the records don't fit, they start the next
+		// block, leaving the current one to the log writer once published
+		long prevTail, start;
+		do {
+			prevTail = tail.get();
+			start = prevTail;
+			if (prevTail % BLOCK_SIZE + batchSize >= BLOCK_STAMP)
+				start = (prevTail / BLOCK_SIZE + 1) * BLOCK_SIZE
+						+ POINTERS_SIZE;
+		} while (!tail.compareAndSet(prevTail, start + batchSize));
+
+		// wait if the page of the block has not been written yet
+		long blkNum = start / BLOCK_SIZE;
+		if (blkNum >= nextBlkToWrite + ring.length)
+			awaitFreePage(blkNum);
+
+		// copy the records; the record before each always ends right there,
+		// so the pointers are known without looking at the page
+		LogBufferPage lbp = ring[(int) (blkNum % ring.length)];
+		int firstPos = (int) (start % BLOCK_SIZE);
+		int recPos = firstPos, pos = firstPos;
+		long lsn = start;
+		for (int i = 0; i < count; i++) {
+			lsn = blkNum * BLOCK_SIZE + recPos;
+			pos = recPos + vals[i].length;
+			lbp.page.setBytes(recPos, vals[i]);
+			lbp.page.setInt(pos, recPos - POINTERS_SIZE);
+			lbp.page.setInt(recPos - Page.maxSize(INTEGER),
+					pos + Page.maxSize(INTEGER));
+			recPos = pos + POINTERS_SIZE;
 		}
-		for (Constant c : rec)
-			appendVal(c);
-		finalizeRecord();
-		return currentLSN();
+
+		// publish the records in the order of their reservations
+		awaitPublished(prevTail);
+		lbp.endPos = pos + POINTERS_SIZE;
+		published = start + batchSize;
+		if (publishWaiters.get() > 0)
+			synchronized (publishLock) {
+				publishLock.notifyAll();
+			}
+
+		// the first record of a block tells the log writer that the
+		// previous block is full
+		if (firstPos == POINTERS_SIZE)
+			synchronized (this) {
+				notifyAll();
+			}
+		return lsn;
 	}
 
 	/**
-	 * Remove the old log file and create a new one.
+	 * Remove the old log records by switching to a new segment, and recycle
+	 * the old segments. No record may be appended while the log is being
+	 * replaced.
 	 */
 	public synchronized void removeAndCreateNewLog() {
-		VanillaDb.fileMgr().rebuildLogFile();
-		appendNewBlock();
+		try {
+			while (published / BLOCK_SIZE > nextBlkToWrite || isWriting) {
+				checkWriter();
+				wait();
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException("interrupted while removing log");
+		}
+		long seg = published / BLOCK_SIZE / SEGMENT_BLOCKS + 1;
+		synchronized (segmentLock) {
+			long oldFirstSeg = firstBlk / SEGMENT_BLOCKS;
+			firstBlk = seg * SEGMENT_BLOCKS;
+			startSegment(seg);
+			for (long s = oldFirstSeg; s < seg; s++)
+				recycleSegment(s);
+		}
+		createFirstBlock(firstBlk);
 	}
 
 	/**
-	 * Adds the specified value to the page at the position denoted by
-	 * currentPos. Then increments currentPos by the size of the value.
+	 * Recycles the segments that hold only log records before the specified
+	 * LSN. This method is meant to be called once a checkpoint makes those
+	 * records unnecessary for recovery.
 	 * 
-	 * @param val
-	 *            the value to be added to the page
+	 * @param lsn
+	 *            the LSN of the earliest log record still needed
+	 */
+	public void recycleSegments(long lsn) {
+		synchronized (segmentLock) {
+			long oldFirstSeg = firstBlk / SEGMENT_BLOCKS;
+			long seg = Math.min(lsn / BLOCK_SIZE / SEGMENT_BLOCKS, headerSeg);
+			if (seg <= oldFirstSeg)
+				return;
+			// the new start must be durable before the segments go away
+			firstBlk = seg * SEGMENT_BLOCKS;
+			writeHeader(headerSeg);
+			for (long s = oldFirstSeg; s < seg; s++)
+				recycleSegment(s);
+		}
+	}
+
+	/**
+	 * Returns the number of the first block of the log.
+	 * 
+	 * @return the number of the first log block
+	 */
+	long firstBlock() {
+		return firstBlk;
+	}
+
+	/**
+	 * Returns the ID of the specified log block in its segment file.
+	 * 
+	 * @param blkNum
+	 *            the number of the log block
+	 * @return the block ID
+	 */
+	public static BlockId logBlock(long blkNum) {
+		return new BlockId(segmentName(blkNum / SEGMENT_BLOCKS), blkNum
+				% SEGMENT_BLOCKS + 1);
+	}
+
+	/**
+	 * Returns true if the specified page holds the specified log block, as
+	 * opposed to a block left over in a recycled segment file.
+	 * 
+	 * @param page
+	 *            the page read from the block
+	 * @param blkNum
+	 *            the number of the log block
+	 * @return true if the page is a block of the log
+	 */
+	public static boolean isLogBlock(Page page, long blkNum) {
+		return page.getLong(BLOCK_STAMP) == blkNum;
+	}
+
+	/**
+	 * Returns the number of the first block of the log, as recorded in the
+	 * segment files. This is meant for the tools that read the log without a
+	 * log manager, such as
+	 * {@link org.vanilladb.core.storage.tx.recovery.LogReader}.
+	 * 
+	 * @return the number of the first log block, or -1 if there is no log
+	 */
+	public static long findFirstBlock() {
+		long[] seqs = listSegments();
+		Page page = new Page();
+		try {
+			for (int i = seqs.length - 1; i >= 0; i--) {
+				long first = readHeader(seqs[i], page);
+				if (first >= 0)
+					return first;
+			}
+			return -1;
+		} finally {
+			page.close();
+		}
+	}
+
+	private static String segmentName(long seq) {
+		return LOG_FILE + "." + seq;
+	}
+
+	private Page pageOf(long blkNum) {
+		return ring[(int) (blkNum % ring.length)].page;
+	}
+
+	/**
+	 * Finds the end of the log in the segment files. The last segment with a
+	 * valid header holds the end of the log, which is its last block stamped
+	 * with its own number. Segment files outside the log are renamed to
+	 * become spare segments, or deleted.
+	 */
+	private void openSegments() {
+		long[] seqs = listSegments();
+		long tailSeg = -1;
+		for (int i = seqs.length - 1; i >= 0 && tailSeg < 0; i--) {
+			long first = readHeader(seqs[i], headerPage);
+			if (first >= 0) {
+				firstBlk = first;
+				tailSeg = seqs[i];
+			}
+		}
+
+		synchronized (segmentLock) {
+			boolean isNewLog = tailSeg < 0;
+			if (isNewLog) {
+				tailSeg = seqs.length > 0 ? seqs[seqs.length - 1] + 1 : 0;
+				firstBlk = tailSeg * SEGMENT_BLOCKS;
+			}
+			long firstSeg = firstBlk / SEGMENT_BLOCKS;
+
+			// keep the spare segments after the tail contiguous, then recycle
+			// the segments before the log
+			lastPreparedSeg = isNewLog ? tailSeg - 1 : tailSeg;
+			headerSeg = lastPreparedSeg;
+			for (long seq : seqs)
+				if (seq > tailSeg)
+					recycleSegment(seq);
+			for (long seq : seqs)
+				if (seq < firstSeg || (isNewLog && seq < tailSeg))
+					recycleSegment(seq);
+			if (isNewLog)
+				startSegment(tailSeg);
+		}
+
+		// find the last block of the log
+		long blkNum = tailSeg * SEGMENT_BLOCKS;
+		long lastBlk = -1;
+		Page page = pageOf(blkNum);
+		for (; blkNum < (tailSeg + 1) * SEGMENT_BLOCKS; blkNum++) {
+			page.read(logBlock(blkNum));
+			if (page.getLong(BLOCK_STAMP) != blkNum)
+				break;
+			lastBlk = blkNum;
+		}
+		if (lastBlk < 0)
+			createFirstBlock(tailSeg * SEGMENT_BLOCKS);
+		else {
+			page = pageOf(lastBlk);
+			page.read(logBlock(lastBlk));
+			startAt(lastBlk, page.getInt(LAST_POS) + POINTERS_SIZE);
+		}
+	}
+
+	/**
+	 * Returns the sequence numbers of the existing segment files, in
+	 * ascending order.
 	 */
-	private void appendVal(Constant val) {
-		myPage.setVal(currentPos, val);
-		currentPos += Page.size(val);
+	private static long[] listSegments() {
+		String prefix = LOG_FILE + ".";
+		String[] names = VanillaDb.fileMgr().listLogFiles(prefix);
+		long[] seqs = new long[names.length];
+		int count = 0;
+		for (String name : names) {
+			try {
+				seqs[count] = Long.parseLong(name.substring(prefix.length()));
+				count++;
+			} catch (NumberFormatException e) {
+				// not a segment file
+			}
+		}
+		seqs = Arrays.copyOf(seqs, count);
+		Arrays.sort(seqs);
+		return seqs;
 	}
 
 	/**
-	 * Returns the LSN of the most recent log record. As implemented, the LSN is
-	 * the block number where the record is stored. Thus every log record in a
-	 * block has the same LSN.
+	 * Reads the header of the specified segment into the specified page, and
+	 * returns the first block of the log it records.
 	 * 
-	 * @return the LSN of the most recent log record
+	 * @return the first block of the log, or -1 if the header is not valid
 	 */
-	private long currentLSN() {
-		return currentBlk.number();
+	private static long readHeader(long seq, Page page) {
+		page.read(new BlockId(segmentName(seq), 0));
+		if (page.getInt(MAGIC_POS) != HEADER_MAGIC
+				|| page.getLong(SEQ_POS) != seq)
+			return -1;
+		return page.getLong(FIRST_BLOCK_POS);
 	}
 
 	/**
-	 * Writes the current page to the log file.
+	 * Writes the header of the specified segment, which records the current
+	 * first block of the log. The caller must hold segmentLock.
 	 */
-	private void flush() {
-		myPage.write(currentBlk);
+	private void writeHeader(long seq) {
+		headerPage.setInt(MAGIC_POS, HEADER_MAGIC);
+		headerPage.setLong(SEQ_POS, seq);
+		headerPage.setLong(FIRST_BLOCK_POS, firstBlk);
+		headerPage.write(new BlockId(segmentName(seq), 0));
 	}
 
 	/**
-	 * Clear the current page, and append it to the log file.
+	 * Makes the specified segment the last segment of the log, preparing its
+	 * file if necessary. The caller must hold segmentLock.
 	 */
-	private void appendNewBlock() {
-		setLastRecordPosition(0);
-		currentPos = Page.maxSize(INTEGER) * 2;
-		currentBlk = myPage.append(LOG_FILE);
+	private void startSegment(long seq) {
+		while (lastPreparedSeg < seq) {
+			lastPreparedSeg++;
+			VanillaDb.fileMgr().preallocate(segmentName(lastPreparedSeg),
+					SEGMENT_BLOCKS + 1);
+		}
+		writeHeader(seq);
+		headerSeg = seq;
 	}
 
 	/**
-	 * Sets up a circular chain of pointers to the records in the page. There is
-	 * an integer added to the end of each log record whose value is the offset
-	 * of the previous log record. The first four bytes of the page contain an
-	 * integer whose value is the offset of the integer for the last log record
-	 * in the page.
+	 * Renames the file of an unused segment to become the next spare segment,
+	 * or deletes it if there are enough spare segments. The caller must hold
+	 * segmentLock.
 	 */
-	private void finalizeRecord() {
-		myPage.setVal(currentPos, new IntegerConstant(getLastRecordPosition()));
-		setPreviousNextRecordPosition(currentPos + Page.maxSize(INTEGER));
-		setLastRecordPosition(currentPos);
-		currentPos += Page.maxSize(INTEGER);
-		setNextRecordPosition(currentPos);
+	private void recycleSegment(long seq) {
+		if (lastPreparedSeg - headerSeg < MAX_SPARE_SEGMENTS) {
+			lastPreparedSeg++;
+			if (seq != lastPreparedSeg)
+				VanillaDb.fileMgr().renameLogFile(segmentName(seq),
+						segmentName(lastPreparedSeg));
+		} else
+			VanillaDb.fileMgr().deleteLogFile(segmentName(seq));
+	}
 
-		// leave for next pointer
-		currentPos += Page.maxSize(INTEGER);
+	/**
+	 * Makes sure that the segment of the specified block has been started, so
+	 * that the block can be written.
+	 */
+	private void ensureSegment(long blkNum) {
+		long seq = blkNum / SEGMENT_BLOCKS;
+		synchronized (segmentLock) {
+			if (headerSeg < seq)
+				startSegment(seq);
+		}
 	}
 
-	private int getLastRecordPosition() {
-		return (Integer) myPage.getVal(LAST_POS, INTEGER).asJavaVal();
+	/**
+	 * Prepares the file of the segment after the last one, so that the log
+	 * does not wait for it when it grows.
+	 */
+	private void prepareSpareSegment() {
+		synchronized (segmentLock) {
+			if (lastPreparedSeg > headerSeg)
+				return;
+			lastPreparedSeg++;
+			VanillaDb.fileMgr().preallocate(segmentName(lastPreparedSeg),
+					SEGMENT_BLOCKS + 1);
+		}
 	}
 
-	private void setLastRecordPosition(int pos) {
-		myPage.setVal(LAST_POS, new IntegerConstant(pos));
+	/**
+	 * Sets the tail of the log to the specified position of the specified
+	 * block, which is buffered and already durable.
+	 */
+	private synchronized void startAt(long blkNum, int pos) {
+		ring[(int) (blkNum % ring.length)].endPos = pos;
+		published = blkNum * BLOCK_SIZE + pos;
+		tail.set(published);
+		nextBlkToWrite = blkNum;
+		// every record already in the file is durable
+		durableLsn = requestedLsn = published - 1;
 	}
 
-	private void setNextRecordPosition(int pos) {
-		myPage.setVal(pos,
-				new IntegerConstant(LAST_POS + Page.maxSize(INTEGER)));
+	/**
+	 * Writes the specified empty block as the first block of a segment, and
+	 * sets the tail of the log to it.
+	 */
+	private void createFirstBlock(long blkNum) {
+		Page page = pageOf(blkNum);
+		closeChain(page, POINTERS_SIZE, blkNum);
+		page.write(logBlock(blkNum));
+		startAt(blkNum, POINTERS_SIZE);
 	}
 
-	private void setPreviousNextRecordPosition(int pos) {
-		int lastPos = (Integer) myPage.getVal(LAST_POS, INTEGER).asJavaVal();
-		myPage.setVal(lastPos + Page.maxSize(INTEGER), new IntegerConstant(pos));
+	/**
+	 * Waits until the records reserved before the specified tail are
+	 * published. The predecessor is usually copying its records, so the
+	 * appender spins for a while before it blocks. The wait cannot be
+	 * interrupted, since the reserved space must be published for any later
+	 * record to be.
+	 */
+	private void awaitPublished(long prevTail) {
+		for (int i = 0; i < PUBLISH_SPINS; i++) {
+			if (published == prevTail)
+				return;
+			Thread.yield();
+		}
+
+		boolean isInterrupted = false;
+		// the publisher reads the count after it advances published
+		publishWaiters.incrementAndGet();
+		try {
+			synchronized (publishLock) {
+				while (published != prevTail) {
+					try {
+						publishLock.wait();
+					} catch (InterruptedException e) {
+						isInterrupted = true;
+					}
+				}
+			}
+		} finally {
+			publishWaiters.decrementAndGet();
+		}
+		if (isInterrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	private synchronized void awaitFreePage(long blkNum) {
+		try {
+			while (blkNum >= nextBlkToWrite + ring.length) {
+				checkWriter();
+				wait();
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException("interrupted while appending log");
+		}
+	}
+
+	/**
+	 * Throws the error that stopped the log writer, if any. No record can
+	 * become durable after the writer stops.
+	 */
+	private void checkWriter() {
+		if (writeFailure != null)
+			throw new RuntimeException("the log writer has stopped",
+					writeFailure);
+	}
+
+	/**
+	 * Sets up the pointers to the first and the last records of a page, given
+	 * the position right after its last record. The first four bytes of the
+	 * page point to the integer of the last record, and the next pointer of the
+	 * last record wraps around to the first record. The page is also stamped
+	 * with its block number.
+	 */
+	private static void closeChain(Page page, int endPos, long blkNum) {
+		int lastPos = endPos - POINTERS_SIZE;
+		page.setInt(LAST_POS, lastPos);
+		page.setInt(lastPos + Page.maxSize(INTEGER),
+				LAST_POS + Page.maxSize(INTEGER));
+		page.setLong(BLOCK_STAMP, blkNum);
+	}
+
+	/**
+	 * The loop of the log writer. It writes the full pages in the ring, in
+	 * block order, and also the published part of the current page when a
+	 * transaction waits for a record in it. The writes are done without
+	 * holding the monitor, so that other transactions can keep appending.
+	 * The writer stops at the first failed write, since the blocks after it
+	 * must not become durable before it, and the waiting transactions are
+	 * woken up to fail.
+	 */
+	private void writeLog() {
+		while (true) {
+			long firstBlk, endBlk, end = -1;
+			long target;
+			boolean isCommitOnly;
+			synchronized (this) {
+				try {
+					while (published / BLOCK_SIZE == nextBlkToWrite
+							&& requestedLsn <= durableLsn) {
+						if (lazyLsn <= durableLsn) {
+							wait();
+							continue;
+						}
+						long delay = lazyDeadline - System.currentTimeMillis();
+						if (delay > 0)
+							wait(delay);
+						else
+							requestedLsn = lazyLsn;
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				isWriting = true;
+				isCommitOnly = published / BLOCK_SIZE == nextBlkToWrite;
+			}
+
+			// let more committing transactions join this write
+			if (GROUP_COMMIT_WINDOW > 0 && isCommitOnly)
+				LockSupport.parkNanos(GROUP_COMMIT_WINDOW * 1000);
+
+			synchronized (this) {
+				long pub = published;
+				firstBlk = nextBlkToWrite;
+				endBlk = pub / BLOCK_SIZE;
+				target = durableLsn;
+				if (endBlk > firstBlk) {
+					LogBufferPage last = ring[(int) ((endBlk - 1) % ring.length)];
+					target = (endBlk - 1) * BLOCK_SIZE + last.endPos - 1;
+				}
+				if (requestedLsn > target) {
+					// records after pub may be copied meanwhile, but the
+					// chain written below stops at pub
+					end = pub;
+					pageOf(endBlk).copyTo(flushBuf);
+					target = pub - 1;
+				}
+			}
+
+			boolean isWritten = false;
+			RuntimeException failure = null;
+			try {
+				// full pages are not modified until they are released below
+				for (long n = firstBlk; n < endBlk; n++) {
+					LogBufferPage lbp = ring[(int) (n % ring.length)];
+					ensureSegment(n);
+					closeChain(lbp.page, lbp.endPos, n);
+					lbp.page.write(logBlock(n));
+				}
+				if (end >= 0) {
+					ensureSegment(endBlk);
+					flushPage.copyFrom(flushBuf);
+					closeChain(flushPage, (int) (end % BLOCK_SIZE), endBlk);
+					flushPage.write(logBlock(endBlk));
+				}
+				isWritten = true;
+			} catch (RuntimeException e) {
+				if (logger.isLoggable(Level.SEVERE))
+					logger.log(Level.SEVERE, "cannot write the log", e);
+				failure = e;
+			} finally {
+				synchronized (this) {
+					if (isWritten) {
+						nextBlkToWrite = endBlk;
+						if (durableLsn < target)
+							durableLsn = target;
+					} else
+						writeFailure = failure != null ? failure
+								: new RuntimeException("cannot write the log");
+					isWriting = false;
+					notifyAll();
+				}
+			}
+			if (!isWritten)
+				return;
+
+			// have the next segment ready before the log reaches it
+			try {
+				prepareSpareSegment();
+			} catch (RuntimeException e) {
+				if (logger.isLoggable(Level.SEVERE))
+					logger.log(Level.SEVERE,
+							"cannot prepare a spare log segment", e);
+			}
+		}
 	}
 }
@@ -0,0 +1,84 @@
+package org.vanilladb.core.storage.tx.recovery;
+
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.storage.buffer.BufferMgrImpl;
+import org.vanilladb.core.storage.log.LogMgr;
+import org.vanilladb.core.storage.tx.Transaction;
+import org.vanilladb.core.util.PropertiesFetcher;
+
+/**
+ * A recovery manager whose transactions may commit without waiting for the
+ * log. An asynchronous commit returns once the commit record is in the log
+ * buffer, and the log writer makes it durable later, as configured by
+ * {@link LogMgr#ASYNC_FLUSH_INTERVAL} and {@link LogMgr#ASYNC_FLUSH_BYTES}.
+ *
+ * <p>
+ * A crash may lose the most recent asynchronous commits, whose transactions
+ * are then rolled back by recovery, but never leaves the database
+ * inconsistent: a data page is still written only after the log records of
+ * its modifications. As in {@link LocalLogRecoveryMgr}, the records of a
+ * transaction are buffered locally until it commits. The commit still waits
+ * for the pages of the transaction to be written, unless
+ * {@link BufferMgrImpl#FORCE_ON_COMMIT} is turned off.
+ * </p>
+ *
+ * <p>
+ * The manager is enabled by setting
+ * <code>TransactionMgr.RECOVERY_MGR</code> to this class. Each transaction
+ * starts with the mode of {@link #SYNCHRONOUS_COMMIT}, and may change it by
+ * {@link #setSynchronousCommit(boolean)}.
+ * </p>
+ */
+public class AsyncCommitRecoveryMgr extends LocalLogRecoveryMgr {
+	/**
+	 * Whether transactions wait for their commit records to be durable unless
+	 * they ask otherwise. It is true unless the property turns asynchronous
+	 * commits on.
+	 */
+	public static final boolean SYNCHRONOUS_COMMIT;
+
+	static {
+		SYNCHRONOUS_COMMIT = PropertiesFetcher.getPropertyAsBoolean(
+				AsyncCommitRecoveryMgr.class.getName() + ".SYNCHRONOUS_COMMIT",
+				true);
+	}
+
+	private boolean isSynchronousCommit = SYNCHRONOUS_COMMIT;
+
+	/**
+	 * Creates a recovery manager for the specified transaction.
+	 *
+	 * @param txNum
+	 *            the ID of the specified transaction
+	 * @param isReadOnly
+	 *            true if the transaction is read-only
+	 */
+	public AsyncCommitRecoveryMgr(long txNum, boolean isReadOnly) {
+		super(txNum, isReadOnly);
+	}
+
+	/**
+	 * Sets whether the commit of the transaction waits for its commit record
+	 * to be durable.
+	 *
+	 * @param isSynchronousCommit
+	 *            true if the commit should wait
+	 */
+	public void setSynchronousCommit(boolean isSynchronousCommit) {
+		this.isSynchronousCommit = isSynchronousCommit;
+	}
+
+	/**
+	 * Writes a commit record to the log. The log is flushed before returning
+	 * only if the commit is synchronous.
+	 */
+	@Override
+	public void onTxCommit(Transaction tx) {
+		if (isSynchronousCommit) {
+			super.onTxCommit(tx);
+			return;
+		}
+		if (!tx.isReadOnly())
+			VanillaDb.logMgr().requestFlush(appendCommitRecord());
+	}
+}
@@ -0,0 +1,117 @@
+package org.vanilladb.core.storage.tx.recovery;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.storage.tx.Transaction;
+import org.vanilladb.core.storage.tx.TransactionLifecycleListener;
+import org.vanilladb.core.storage.tx.TransactionStartListener;
+
+/**
+ * A recovery manager that lets its transaction release the locks before the
+ * commit record is durable. The commit record is appended to the log buffer
+ * when the transaction commits, and the concurrency manager, which is notified
+ * after the recovery manager, then releases the locks at once. The commit
+ * returns to the client only after the commit record is durable, which is
+ * waited for by a listener notified after the concurrency manager. The
+ * transactions committing on a contended item thus wait for the disk
+ * together, in one group commit, rather than one after another while holding
+ * the lock.
+ *
+ * <p>
+ * A transaction that sees the modifications of a transaction released early
+ * depends on its commit. An updating transaction appends its own commit record
+ * later in the log, so its commit becomes durable only after the commit it
+ * depends on. A read-only transaction writes no commit record, so it waits for
+ * every commit released before it commits.
+ * </p>
+ *
+ * <p>
+ * The manager is enabled by setting
+ * <code>TransactionMgr.RECOVERY_MGR</code> to this class. As in
+ * {@link LocalLogRecoveryMgr}, the records of a transaction are buffered
+ * locally until it commits.
+ * </p>
+ */
+public class EarlyLockReleaseRecoveryMgr extends LocalLogRecoveryMgr {
+
+	/**
+	 * The listener that holds back the commit of a transaction until its
+	 * commit is durable. It is notified after the concurrency manager, since
+	 * it is added to a transaction when the transaction starts.
+	 */
+	private static class CommitAcknowledger implements
+			TransactionStartListener, TransactionLifecycleListener {
+
+		@Override
+		public void onTxStart(Transaction tx) {
+			if (tx.recoveryMgr() instanceof EarlyLockReleaseRecoveryMgr)
+				tx.addLifecycleListener(this);
+		}
+
+		@Override
+		public void onTxCommit(Transaction tx) {
+			((EarlyLockReleaseRecoveryMgr) tx.recoveryMgr())
+					.awaitDurableCommit();
+		}
+
+		@Override
+		public void onTxRollback(Transaction tx) {
+			// do nothing
+		}
+
+		@Override
+		public void onTxEndStatement(Transaction tx) {
+			// do nothing
+		}
+	}
+
+	// the LSN of the last commit record appended by a transaction that then
+	// released its locks
+	private static AtomicLong lastReleasedLsn = new AtomicLong(-1);
+
+	static {
+		Transaction.addStartListener(new CommitAcknowledger());
+	}
+
+	private long commitLsn = -1;
+
+	/**
+	 * Creates a recovery manager for the specified transaction.
+	 *
+	 * @param txNum
+	 *            the ID of the specified transaction
+	 * @param isReadOnly
+	 *            true if the transaction is read-only
+	 */
+	public EarlyLockReleaseRecoveryMgr(long txNum, boolean isReadOnly) {
+		super(txNum, isReadOnly);
+	}
+
+	/**
+	 * Writes a commit record to the log buffer without flushing the log, so
+	 * that the locks of the transaction can be released right after.
+	 */
+	@Override
+	public void onTxCommit(Transaction tx) {
+		if (tx.isReadOnly()) {
+			commitLsn = lastReleasedLsn.get();
+			return;
+		}
+		commitLsn = appendCommitRecord();
+		long lsn;
+		do {
+			lsn = lastReleasedLsn.get();
+		} while (lsn < commitLsn
+				&& !lastReleasedLsn.compareAndSet(lsn, commitLsn));
+	}
+
+	/**
+	 * Waits until the commit record of the transaction, and the commit records
+	 * the transaction may depend on, are durable.
+	 */
+	private void awaitDurableCommit() {
+		if (commitLsn >= 0)
+			VanillaDb.logMgr().flush(commitLsn);
+	}
+}
@@ -0,0 +1,222 @@
+package org.vanilladb.core.storage.tx.recovery;
+
+import static org.vanilladb.core.storage.tx.recovery.LogRecord.OP_CHECKPOINT;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.server.task.Task;
+import org.vanilladb.core.sql.BigIntConstant;
+import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.IntegerConstant;
+import org.vanilladb.core.storage.tx.Transaction;
+import org.vanilladb.core.storage.tx.TransactionLifecycleListener;
+import org.vanilladb.core.storage.tx.TransactionStartListener;
+import org.vanilladb.core.util.PropertiesFetcher;
+
+/**
+ * The task performing fuzzy checkpoints. Unlike {@link CheckpointTask}, a
+ * checkpoint neither blocks the transactions nor flushes the buffer pool.
+ *
+ * <p>
+ * The buffer manager keeps a recovery LSN for each dirty buffer, which no log
+ * record of a modification missing from the disk precedes, and the task keeps
+ * a start LSN for each active transaction, which every log record of the
+ * transaction follows. The checkpoint record lists the active transactions,
+ * as the record of a quiescent checkpoint does, followed by the redo LSN, the
+ * smallest of those LSNs. {@link ParallelRecovery} scans the log back to the
+ * redo LSN only, and the log segments before it are recycled.
+ * {@link RecoveryMgr} ignores the redo LSN and scans back to the start records
+ * of the listed transactions, which suffices as long as the commits force the
+ * buffers to disk.
+ * </p>
+ *
+ * <p>
+ * Before the record is written, the buffers dirty since the previous
+ * checkpoint are flushed gradually in the background, so that the redo LSN
+ * advances even if some pages are never replaced. A checkpoint is taken every
+ * <code>PERIOD</code> milliseconds, or as soon as
+ * <code>TX_COUNT_TO_CHECKPOINT</code> transactions have started since the
+ * previous one.
+ * </p>
+ */
+public class FuzzyCheckpointTask extends Task implements
+		TransactionStartListener, TransactionLifecycleListener {
+	private static Logger logger = Logger.getLogger(FuzzyCheckpointTask.class
+			.getName());
+
+	/**
+	 * The maximum time in milliseconds between the beginnings of two
+	 * checkpoints.
+	 */
+	public static final long PERIOD;
+	/**
+	 * The number of started transactions that triggers a checkpoint. The
+	 * property is shared with {@link CheckpointTask}.
+	 */
+	public static final int TX_COUNT_TO_CHECKPOINT;
+	/**
+	 * The number of pages the checkpoint writes before each pause.
+	 */
+	public static final int FLUSH_BATCH_PAGES;
+	/**
+	 * The time in milliseconds the checkpoint pauses between two batches of
+	 * page writes.
+	 */
+	public static final long FLUSH_PAUSE;
+
+	static {
+		PERIOD = PropertiesFetcher.getPropertyAsLong(
+				FuzzyCheckpointTask.class.getName() + ".PERIOD", 300000);
+		TX_COUNT_TO_CHECKPOINT = Math.max(1, PropertiesFetcher
+				.getPropertyAsInteger(CheckpointTask.class.getName()
+						+ ".TX_COUNT_TO_CHECKPOINT", 1000));
+		FLUSH_BATCH_PAGES = Math.max(1, PropertiesFetcher
+				.getPropertyAsInteger(FuzzyCheckpointTask.class.getName()
+						+ ".FLUSH_BATCH_PAGES", 64));
+		FLUSH_PAUSE = PropertiesFetcher.getPropertyAsLong(
+				FuzzyCheckpointTask.class.getName() + ".FLUSH_PAUSE", 10);
+	}
+
+	// the start LSNs of the updating transactions that have started but not
+	// finished
+	private Map<Long, Long> activeTxs = new ConcurrentHashMap<Long, Long>();
+	// the transactions active since the current checkpoint began, or null if
+	// no checkpoint is in progress; guarded by this
+	private Set<Long> checkpointTxs;
+	// the transactions started since the previous checkpoint
+	private AtomicInteger txCount = new AtomicInteger();
+	// the LSN of the previous checkpoint record
+	private long lastCheckpointLsn = -1;
+
+	/**
+	 * Creates the task and starts tracking the transactions. The task must be
+	 * created before any transaction other than the recovery one starts.
+	 */
+	public FuzzyCheckpointTask() {
+		Transaction.addStartListener(this);
+	}
+
+	@Override
+	public void onTxStart(Transaction tx) {
+		if (txCount.incrementAndGet() == TX_COUNT_TO_CHECKPOINT) {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+		// read-only transactions write no log records
+		if (tx.isReadOnly())
+			return;
+		Long txNum = tx.getTransactionNumber();
+		// the transaction appends its records from now on
+		activeTxs.put(txNum, VanillaDb.logMgr().endLsn());
+		synchronized (this) {
+			if (checkpointTxs != null)
+				checkpointTxs.add(txNum);
+		}
+		tx.addLifecycleListener(this);
+	}
+
+	@Override
+	public void onTxCommit(Transaction tx) {
+		activeTxs.remove(tx.getTransactionNumber());
+	}
+
+	@Override
+	public void onTxRollback(Transaction tx) {
+		activeTxs.remove(tx.getTransactionNumber());
+	}
+
+	@Override
+	public void onTxEndStatement(Transaction tx) {
+		// do nothing
+	}
+
+	/**
+	 * Performs a checkpoint. The caller is not blocked by transactions, nor
+	 * does it block them, except that transactions cannot start while the
+	 * checkpoint record is being appended.
+	 */
+	public void createCheckpoint() {
+		if (logger.isLoggable(Level.INFO))
+			logger.info("Start creating a fuzzy checkpoint");
+
+		// a page that cannot be written only holds the redo LSN back
+		try {
+			VanillaDb.bufferMgr().flushGradually(lastCheckpointLsn,
+					FLUSH_BATCH_PAGES, FLUSH_PAUSE);
+		} catch (RuntimeException e) {
+			if (logger.isLoggable(Level.WARNING))
+				logger.log(Level.WARNING, "cannot flush the buffers", e);
+		}
+
+		// the transactions starting from now on append their records after
+		// the end of the log
+		long redoLsn;
+		synchronized (this) {
+			redoLsn = VanillaDb.logMgr().endLsn();
+			checkpointTxs = new HashSet<Long>();
+			for (Map.Entry<Long, Long> tx : activeTxs.entrySet()) {
+				checkpointTxs.add(tx.getKey());
+				redoLsn = Math.min(redoLsn, tx.getValue());
+			}
+		}
+		// a buffer becoming dirty after the scan belongs to a transaction
+		// taken above, or to one starting later
+		long minRecLsn = VanillaDb.bufferMgr().minRecLsn();
+		if (minRecLsn >= 0)
+			redoLsn = Math.min(redoLsn, minRecLsn);
+
+		// no transaction missing from the list starts before the record
+		List<Long> txs;
+		long lsn;
+		synchronized (this) {
+			txs = new ArrayList<Long>(checkpointTxs);
+			checkpointTxs = null;
+			Constant[] rec = new Constant[txs.size() + 3];
+			rec[0] = new IntegerConstant(OP_CHECKPOINT);
+			rec[1] = new IntegerConstant(txs.size());
+			for (int i = 0; i < txs.size(); i++)
+				rec[i + 2] = new BigIntConstant(txs.get(i));
+			rec[txs.size() + 2] = new BigIntConstant(redoLsn);
+			lsn = VanillaDb.logMgr().append(rec);
+		}
+		VanillaDb.logMgr().flush(lsn);
+		lastCheckpointLsn = lsn;
+
+		if (logger.isLoggable(Level.INFO))
+			logger.info("A fuzzy checkpoint listing " + txs.size()
+					+ " transactions is created, redo LSN " + redoLsn);
+
+		VanillaDb.logMgr().recycleSegments(redoLsn);
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				synchronized (this) {
+					long deadline = System.currentTimeMillis() + PERIOD;
+					long remaining = PERIOD;
+					while (txCount.get() < TX_COUNT_TO_CHECKPOINT
+							&& remaining > 0) {
+						wait(remaining);
+						remaining = deadline - System.currentTimeMillis();
+					}
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+			txCount.set(0);
+			createCheckpoint();
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package org.vanilladb.core.storage.tx.recovery;
+
+import static org.vanilladb.core.storage.tx.recovery.LogRecord.OP_COMMIT;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.sql.BigIntConstant;
+import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.IntegerConstant;
+import org.vanilladb.core.sql.VarcharConstant;
+import org.vanilladb.core.storage.buffer.Buffer;
+import org.vanilladb.core.storage.file.BlockId;
+import org.vanilladb.core.storage.file.FileMgr;
+import org.vanilladb.core.storage.log.LogMgr;
+import org.vanilladb.core.storage.record.RecordId;
+import org.vanilladb.core.storage.tx.Transaction;
+
+/**
+ * A recovery manager that buffers the set-value records of its transaction
+ * locally, by {@link LogMgr#appendLocal(long, Constant[])}, instead of
+ * appending each of them to the shared log. The buffered records are merged
+ * into the log in a single reservation when the transaction commits, when the
+ * local buffer fills up, or when a page modified by the transaction is about
+ * to be written, so a transaction contends for the log once rather than once
+ * per modification.
+ *
+ * <p>
+ * The records keep their format and order in the log. The local records are
+ * merged before a logical index record is written, and before the
+ * transaction is rolled back, which undoes the records found in the log.
+ * </p>
+ *
+ * <p>
+ * The manager is enabled by setting
+ * <code>TransactionMgr.RECOVERY_MGR</code> to this class. Logging of the
+ * set-value records is turned on and off by
+ * {@link RecoveryMgr#logSetVal(boolean)}, as for the other recovery managers.
+ * </p>
+ */
+public class LocalLogRecoveryMgr extends RecoveryMgr {
+	// the switch set by RecoveryMgr.logSetVal(boolean), which has no getter
+	private static final Field LOG_SET_VAL_FLAG;
+
+	private long txNum;
+	private boolean isRollingBack;
+
+	static {
+		Field flag = null;
+		for (Field field : RecoveryMgr.class.getDeclaredFields())
+			if (field.getType() == boolean.class
+					&& Modifier.isStatic(field.getModifiers()))
+				flag = field;
+		if (flag == null)
+			throw new ExceptionInInitializerError(
+					"cannot find the switch of RecoveryMgr.logSetVal");
+		flag.setAccessible(true);
+		LOG_SET_VAL_FLAG = flag;
+	}
+
+	/**
+	 * Creates a recovery manager for the specified transaction.
+	 *
+	 * @param txNum
+	 *            the ID of the specified transaction
+	 * @param isReadOnly
+	 *            true if the transaction is read-only
+	 */
+	public LocalLogRecoveryMgr(long txNum, boolean isReadOnly) {
+		super(txNum, isReadOnly);
+		this.txNum = txNum;
+	}
+
+	/**
+	 * Merges the local records and a commit record into the log, and flushes
+	 * the log.
+	 */
+	@Override
+	public void onTxCommit(Transaction tx) {
+		if (!tx.isReadOnly())
+			VanillaDb.logMgr().flush(appendCommitRecord());
+	}
+
+	/**
+	 * Merges the local records into the log, and rolls back the transaction.
+	 * The records written during the rollback go to the log directly.
+	 */
+	@Override
+	public void onTxRollback(Transaction tx) {
+		if (!tx.isReadOnly()) {
+			VanillaDb.logMgr().closeLocal(txNum, new Constant[0][]);
+			isRollingBack = true;
+		}
+		super.onTxRollback(tx);
+	}
+
+	/**
+	 * Buffers a set-value record locally. The modification must be made with
+	 * the returned {@link LogMgr#LOCAL_LSN}, so that the buffer merges the
+	 * record before writing the page.
+	 *
+	 * @param buff
+	 *            the buffer containing the page
+	 * @param offset
+	 *            the offset of the value in the page
+	 * @param newVal
+	 *            the value to be written
+	 * @return {@link LogMgr#LOCAL_LSN}, or -1 if the modification is not
+	 *         logged
+	 */
+	@Override
+	public long logSetVal(Buffer buff, int offset, Constant newVal) {
+		if (isRollingBack)
+			return super.logSetVal(buff, offset, newVal);
+		BlockId blk = buff.block();
+		// temporary tables are never recovered
+		if (!isLogEnabled()
+				|| blk.fileName().startsWith(FileMgr.TMP_FILE_NAME_PREFIX))
+			return -1;
+		Constant oldVal = buff.getVal(offset, newVal.getType());
+		VanillaDb.logMgr().appendLocal(
+				txNum,
+				new Constant[] {
+						new IntegerConstant(newVal.getType().getSqlType()),
+						new BigIntConstant(txNum),
+						new VarcharConstant(blk.fileName()),
+						new BigIntConstant(blk.number()),
+						new IntegerConstant(offset), oldVal, newVal });
+		return LogMgr.LOCAL_LSN;
+	}
+
+	@Override
+	public long logIndexInsertion(String tblName, String fldName,
+			Constant key, RecordId rid) {
+		VanillaDb.logMgr().mergeLocal(txNum);
+		return super.logIndexInsertion(tblName, fldName, key, rid);
+	}
+
+	@Override
+	public long logIndexDeletion(String tblName, String fldName,
+			Constant key, RecordId rid) {
+		VanillaDb.logMgr().mergeLocal(txNum);
+		return super.logIndexDeletion(tblName, fldName, key, rid);
+	}
+
+	private static boolean isLogEnabled() {
+		try {
+			return LOG_SET_VAL_FLAG.getBoolean(null);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Appends the commit record of the transaction to the log, right after
+	 * the records still buffered locally, in a single reservation.
+	 *
+	 * @return the LSN of the commit record
+	 */
+	protected long appendCommitRecord() {
+		return VanillaDb.logMgr().closeLocal(txNum,
+				new Constant[][] { { new IntegerConstant(OP_COMMIT),
+						new BigIntConstant(txNum) } });
+	}
+}
@@ -0,0 +1,142 @@
+package org.vanilladb.core.storage.tx.recovery;
+
+import static org.vanilladb.core.sql.Type.BIGINT;
+import static org.vanilladb.core.sql.Type.INTEGER;
+import static org.vanilladb.core.sql.Type.VARCHAR;
+import static org.vanilladb.core.storage.tx.recovery.LogRecord.OP_CHECKPOINT;
+import static org.vanilladb.core.storage.tx.recovery.LogRecord.OP_COMMIT;
+import static org.vanilladb.core.storage.tx.recovery.LogRecord.OP_INDEX_DELETE;
+import static org.vanilladb.core.storage.tx.recovery.LogRecord.OP_INDEX_INSERT;
+import static org.vanilladb.core.storage.tx.recovery.LogRecord.OP_ROLLBACK;
+import static org.vanilladb.core.storage.tx.recovery.LogRecord.OP_START;
+
+import java.util.Arrays;
+
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.sql.Type;
+import org.vanilladb.core.storage.file.BlockId;
+import org.vanilladb.core.storage.file.Page;
+import org.vanilladb.core.storage.log.BasicLogRecord;
+import org.vanilladb.core.storage.log.LogMgr;
+
+/**
+ * A reader that goes through the log records from the earliest to the most
+ * recent, and describes each of them as a string. It reads the segment files
+ * through {@link LogMgr#logBlock(long)} without a running log manager, so it
+ * can be used on the log of a database that is not running, as
+ * {@link org.vanilladb.core.util.LogFileTranslator} does.
+ */
+public class LogReader {
+	private static final int POINTERS_SIZE = Page.maxSize(INTEGER) * 2;
+
+	private Page page = new Page();
+	private long blkNum;
+	private int currentRec;
+	private String logString;
+
+	/**
+	 * Creates a reader positioned before the first record of the log.
+	 * 
+	 * @param fileName
+	 *            the name of the log, which is expected to be
+	 *            {@link LogMgr#LOG_FILE}, the prefix of the segment files
+	 */
+	public LogReader(String fileName) {
+		blkNum = LogMgr.findFirstBlock();
+		if (blkNum < 0 || !readBlock(blkNum)) {
+			page.close();
+			page = null;
+		}
+	}
+
+	/**
+	 * Moves to the next log record.
+	 * 
+	 * @return false if there are no more records
+	 */
+	public boolean nextRecord() {
+		if (page == null)
+			return false;
+		// the last record of a block points back to its first one
+		while (currentRec - POINTERS_SIZE == page.getInt(LogMgr.LAST_POS)) {
+			if (!readBlock(blkNum + 1)) {
+				page.close();
+				page = null;
+				return false;
+			}
+		}
+		int next = page.getInt(currentRec - Page.maxSize(INTEGER));
+		BasicLogRecord rec = new BasicLogRecord(page, currentRec, next
+				- Page.maxSize(INTEGER));
+		logString = describe(rec);
+		currentRec = next + Page.maxSize(INTEGER);
+		return true;
+	}
+
+	/**
+	 * Returns the description of the current log record.
+	 * 
+	 * @return the description of the record
+	 */
+	public String getLogString() {
+		return logString;
+	}
+
+	/**
+	 * Reads the specified log block, and positions the reader at its first
+	 * record.
+	 */
+	private boolean readBlock(long n) {
+		BlockId blk = LogMgr.logBlock(n);
+		// do not create the segment after the last one by reading it
+		if (n % LogMgr.SEGMENT_BLOCKS == 0
+				&& !Arrays.asList(
+						VanillaDb.fileMgr().listLogFiles(blk.fileName()))
+						.contains(blk.fileName()))
+			return false;
+		page.read(blk);
+		if (!LogMgr.isLogBlock(page, n))
+			return false;
+		blkNum = n;
+		currentRec = POINTERS_SIZE;
+		return true;
+	}
+
+	private static String describe(BasicLogRecord rec) {
+		int op = (Integer) rec.nextVal(INTEGER).asJavaVal();
+		switch (op) {
+		case OP_CHECKPOINT:
+			int count = (Integer) rec.nextVal(INTEGER).asJavaVal();
+			StringBuilder sb = new StringBuilder("<NQCKPT ");
+			for (int i = 0; i < count; i++) {
+				if (i > 0)
+					sb.append(",");
+				sb.append(rec.nextVal(BIGINT));
+			}
+			// written by fuzzy checkpoints
+			if (rec.hasNextVal())
+				sb.append(" REDO ").append(rec.nextVal(BIGINT));
+			return sb.append(">").toString();
+		case OP_START:
+			return "<START " + rec.nextVal(BIGINT) + ">";
+		case OP_COMMIT:
+			return "<COMMIT " + rec.nextVal(BIGINT) + ">";
+		case OP_ROLLBACK:
+			return "<ROLLBACK " + rec.nextVal(BIGINT) + ">";
+		case OP_INDEX_INSERT:
+			return new IndexInsertRecord(rec).toString();
+		case OP_INDEX_DELETE:
+			return new IndexDeleteRecord(rec).toString();
+		default:
+			// a set-value record, whose op is the type of its values
+			long txNum = (Long) rec.nextVal(BIGINT).asJavaVal();
+			String fileName = (String) rec.nextVal(VARCHAR).asJavaVal();
+			long blkNum = (Long) rec.nextVal(BIGINT).asJavaVal();
+			int offset = (Integer) rec.nextVal(INTEGER).asJavaVal();
+			Type type = Type.newInstance(op);
+			return "<SETVAL " + op + " " + txNum + " "
+					+ new BlockId(fileName, blkNum) + " " + offset + " "
+					+ rec.nextVal(type) + ">";
+		}
+	}
+}
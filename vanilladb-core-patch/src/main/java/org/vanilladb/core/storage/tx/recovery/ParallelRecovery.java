@@ -0,0 +1,372 @@
+package org.vanilladb.core.storage.tx.recovery;
+
+import static org.vanilladb.core.storage.tx.recovery.LogRecord.OP_CHECKPOINT;
+import static org.vanilladb.core.storage.tx.recovery.LogRecord.OP_COMMIT;
+import static org.vanilladb.core.storage.tx.recovery.LogRecord.OP_INDEX_DELETE;
+import static org.vanilladb.core.storage.tx.recovery.LogRecord.OP_INDEX_INSERT;
+import static org.vanilladb.core.storage.tx.recovery.LogRecord.OP_ROLLBACK;
+import static org.vanilladb.core.storage.tx.recovery.LogRecord.OP_START;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.server.task.Task;
+import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.Type;
+import org.vanilladb.core.storage.buffer.Buffer;
+import org.vanilladb.core.storage.buffer.BufferMgrImpl;
+import org.vanilladb.core.storage.file.BlockId;
+import org.vanilladb.core.storage.file.Page;
+import org.vanilladb.core.storage.log.BasicLogRecord;
+import org.vanilladb.core.storage.log.LogIterator;
+import org.vanilladb.core.storage.tx.Transaction;
+import org.vanilladb.core.util.PropertiesFetcher;
+
+/**
+ * A recovery procedure that applies the same rules as
+ * {@link RecoveryMgr#recover(Transaction)}, but redoes the physical updates in
+ * parallel.
+ *
+ * <p>
+ * The log is scanned backward once. The set-value records of committed
+ * transactions are partitioned by block, and {@link #redo()} applies each
+ * partition on a pool of workers. The workers take runs of adjacent blocks,
+ * read each run into pages with one request, apply the records of every block
+ * in log order, and write the modified pages back with one gathering request
+ * for each sequence of adjacent ones. Records not newer than the LSN stamped
+ * on a page are already in it and are skipped, and a page that needs no
+ * record is not written. Since this bypasses the buffer pool,
+ * {@link #redo()} must be called before anything is pinned, that is, before
+ * the catalog is loaded.
+ * </p>
+ *
+ * <p>
+ * The logical index records are redone and the records of uncompleted
+ * transactions are undone by {@link #undo()}, which needs the catalog and runs
+ * through the buffer pool on the recovery transaction.
+ * </p>
+ */
+public class ParallelRecovery {
+	private static Logger logger = Logger.getLogger(ParallelRecovery.class
+			.getName());
+
+	/**
+	 * The number of workers that redo the blocks. With a single worker, the
+	 * recovery falls back to {@link RecoveryMgr#recover(Transaction)}, unless
+	 * the commits do not force the buffers.
+	 */
+	public static final int REDO_WORKERS;
+	/**
+	 * The maximum number of adjacent blocks read in one request. The blocks
+	 * of a run that need redo are written back in one request for each
+	 * sequence of adjacent ones.
+	 */
+	public static final int PREFETCH_BLOCKS;
+
+	static {
+		REDO_WORKERS = PropertiesFetcher.getPropertyAsInteger(
+				ParallelRecovery.class.getName() + ".REDO_WORKERS", 4);
+		PREFETCH_BLOCKS = PropertiesFetcher.getPropertyAsInteger(
+				ParallelRecovery.class.getName() + ".PREFETCH_BLOCKS", 32);
+	}
+
+	private static final Comparator<BlockId> BLOCK_ORDER = new Comparator<BlockId>() {
+		@Override
+		public int compare(BlockId b1, BlockId b2) {
+			if (b1.fileId() != b2.fileId())
+				return b1.fileId() < b2.fileId() ? -1 : 1;
+			return Long.compare(b1.number(), b2.number());
+		}
+	};
+
+	/**
+	 * A decoded set-value record.
+	 */
+	private static class SetValRecord {
+		private long lsn;
+		private BlockId blk;
+		private int offset;
+		private Constant oldVal, newVal;
+	}
+
+	/**
+	 * Returns true if the recovery should be done by this class rather than
+	 * by {@link RecoveryMgr}. Without {@link BufferMgrImpl#FORCE_ON_COMMIT},
+	 * the committed modifications before a fuzzy checkpoint may be missing
+	 * from the disk, and only this class redoes them, as it honors the redo
+	 * LSN of the checkpoint.
+	 *
+	 * @return true if parallel recovery is enabled
+	 */
+	public static boolean isEnabled() {
+		return REDO_WORKERS > 1 || !BufferMgrImpl.FORCE_ON_COMMIT;
+	}
+
+	private Transaction tx;
+	private Map<BlockId, List<SetValRecord>> redoRecords = new HashMap<BlockId, List<SetValRecord>>();
+	private List<LogRecord> indexRedoRecords = new ArrayList<LogRecord>();
+	// in backward log order; each is either a SetValRecord or a LogRecord
+	private List<Object> undoRecords = new ArrayList<Object>();
+	private int numRedoRecords;
+	private AtomicInteger numSkippedBlocks = new AtomicInteger();
+	private volatile RuntimeException failure;
+
+	/**
+	 * Creates a recovery procedure for the specified transaction and analyzes
+	 * the log.
+	 *
+	 * @param tx
+	 *            the transaction that performs the recovery
+	 */
+	public ParallelRecovery(Transaction tx) {
+		this.tx = tx;
+		analyze();
+	}
+
+	/**
+	 * Redoes the set-value records of the committed transactions directly on
+	 * the disk, in parallel. The buffer pool must not hold any block of the
+	 * data files.
+	 */
+	public void redo() {
+		List<BlockId> blocks = new ArrayList<BlockId>(redoRecords.keySet());
+		Collections.sort(blocks, BLOCK_ORDER);
+
+		// group adjacent blocks into runs
+		final List<BlockId[]> runs = new ArrayList<BlockId[]>();
+		int start = 0;
+		for (int i = 1; i <= blocks.size(); i++) {
+			if (i < blocks.size() && i - start < PREFETCH_BLOCKS) {
+				BlockId prev = blocks.get(i - 1), blk = blocks.get(i);
+				if (blk.fileId() == prev.fileId()
+						&& blk.number() == prev.number() + 1)
+					continue;
+			}
+			runs.add(blocks.subList(start, i).toArray(new BlockId[i - start]));
+			start = i;
+		}
+
+		int numWorkers = Math.min(REDO_WORKERS, runs.size());
+		final AtomicInteger nextRun = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(numWorkers);
+		for (int i = 0; i < numWorkers; i++) {
+			VanillaDb.taskMgr().runTask(new Task() {
+				@Override
+				public void run() {
+					try {
+						int r;
+						while (failure == null
+								&& (r = nextRun.getAndIncrement()) < runs.size())
+							redoRun(runs.get(r));
+					} catch (RuntimeException e) {
+						failure = e;
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("interrupted while redoing the log");
+		}
+		if (failure != null)
+			throw new RuntimeException("cannot redo the log", failure);
+
+		if (logger.isLoggable(Level.INFO))
+			logger.info("redo " + numRedoRecords + " records on "
+					+ blocks.size() + " blocks with " + numWorkers
+					+ " workers, " + numSkippedBlocks.get()
+					+ " blocks were up to date");
+	}
+
+	/**
+	 * Redoes the index records of the committed transactions, undoes the
+	 * records of the uncompleted transactions, and writes a quiescent
+	 * checkpoint record. The catalog must have been loaded.
+	 */
+	public void undo() {
+		for (LogRecord rec : indexRedoRecords)
+			rec.redo(tx);
+
+		long txNum = tx.getTransactionNumber();
+		for (Object rec : undoRecords) {
+			if (rec instanceof SetValRecord) {
+				SetValRecord svr = (SetValRecord) rec;
+				Buffer buff = VanillaDb.bufferMgr().pin(svr.blk, txNum);
+				buff.setVal(svr.offset, svr.oldVal, txNum, -1);
+				VanillaDb.bufferMgr().unpin(txNum, buff);
+			} else
+				((LogRecord) rec).undo(tx);
+		}
+
+		VanillaDb.bufferMgr().flushAll(txNum);
+		long lsn = tx.recoveryMgr().checkpoint(new ArrayList<Long>());
+		VanillaDb.logMgr().flush(lsn);
+	}
+
+	/**
+	 * Scans the log backward and sorts the records into redo and undo work,
+	 * with the same stopping rules as {@link RecoveryMgr}. The scan also stops
+	 * at the redo LSN of the last {@link FuzzyCheckpointTask fuzzy checkpoint}.
+	 */
+	private void analyze() {
+		LogIterator iter = (LogIterator) VanillaDb.logMgr().iterator();
+		try {
+			scanLog(iter);
+		} finally {
+			iter.close();
+		}
+
+		// the scan was backward, but redo goes forward
+		for (List<SetValRecord> recs : redoRecords.values())
+			Collections.reverse(recs);
+		Collections.reverse(indexRedoRecords);
+	}
+
+	private void scanLog(LogIterator iter) {
+		Set<Long> committedTxs = new HashSet<Long>();
+		Set<Long> finishedTxs = new HashSet<Long>();
+		Set<Long> uncompletedTxs = new HashSet<Long>();
+		Set<Long> ckptTxs = null;
+		long redoLsn = -1;
+		long recoveryTxNum = tx.getTransactionNumber();
+		while (iter.hasNext()) {
+			BasicLogRecord rec = iter.next();
+			// the updates before the redo LSN of a fuzzy checkpoint are on
+			// disk, and their transactions had completed
+			if (rec.getLsn() < redoLsn)
+				break;
+			int op = (Integer) rec.nextVal(Type.INTEGER).asJavaVal();
+
+			if (op == OP_CHECKPOINT) {
+				int count = (Integer) rec.nextVal(Type.INTEGER).asJavaVal();
+				Set<Long> txs = new HashSet<Long>();
+				for (int i = 0; i < count; i++)
+					txs.add((Long) rec.nextVal(Type.BIGINT).asJavaVal());
+				if (rec.hasNextVal()) {
+					// a fuzzy checkpoint, see FuzzyCheckpointTask
+					long lsn = (Long) rec.nextVal(Type.BIGINT).asJavaVal();
+					if (redoLsn < 0 && ckptTxs == null)
+						redoLsn = lsn;
+					continue;
+				}
+				ckptTxs = txs;
+				if (ckptTxs.isEmpty())
+					break;
+				continue;
+			}
+
+			if (op == OP_INDEX_INSERT || op == OP_INDEX_DELETE) {
+				LogRecord idxRec = op == OP_INDEX_INSERT ? new IndexInsertRecord(
+						rec) : new IndexDeleteRecord(rec);
+				long txNum = idxRec.txNumber();
+				if (committedTxs.contains(txNum))
+					indexRedoRecords.add(idxRec);
+				else if (!finishedTxs.contains(txNum) && txNum != recoveryTxNum)
+					undoRecords.add(idxRec);
+				continue;
+			}
+
+			long txNum = (Long) rec.nextVal(Type.BIGINT).asJavaVal();
+			if (op == OP_COMMIT) {
+				committedTxs.add(txNum);
+				finishedTxs.add(txNum);
+			} else if (op == OP_ROLLBACK)
+				finishedTxs.add(txNum);
+			else if (op == OP_START) {
+				if (!finishedTxs.contains(txNum) && txNum != recoveryTxNum)
+					uncompletedTxs.add(txNum);
+				if (ckptTxs != null && ckptTxs.remove(txNum)
+						&& ckptTxs.isEmpty())
+					break;
+			} else {
+				// a set-value record, whose op is the type of its values
+				SetValRecord svr = new SetValRecord();
+				svr.lsn = rec.getLsn();
+				String fileName = (String) rec.nextVal(Type.VARCHAR)
+						.asJavaVal();
+				long blkNum = (Long) rec.nextVal(Type.BIGINT).asJavaVal();
+				svr.blk = new BlockId(fileName, blkNum);
+				svr.offset = (Integer) rec.nextVal(Type.INTEGER).asJavaVal();
+				Type type = Type.newInstance(op);
+				svr.oldVal = rec.nextVal(type);
+				svr.newVal = rec.nextVal(type);
+
+				if (committedTxs.contains(txNum)) {
+					List<SetValRecord> recs = redoRecords.get(svr.blk);
+					if (recs == null) {
+						recs = new ArrayList<SetValRecord>();
+						redoRecords.put(svr.blk, recs);
+					}
+					recs.add(svr);
+					numRedoRecords++;
+				} else if (!finishedTxs.contains(txNum)
+						&& txNum != recoveryTxNum)
+					undoRecords.add(svr);
+			}
+		}
+	}
+
+	private void redoRun(BlockId[] run) {
+		Page[] pages = new Page[run.length];
+		for (int i = 0; i < run.length; i++)
+			pages[i] = new Page();
+		try {
+			// blocks beyond the end of the file stay zeroed
+			Page.readBlocks(run[0], pages);
+			int dirtyStart = -1;
+			for (int i = 0; i <= run.length; i++) {
+				if (i < run.length && redoPage(run[i], pages[i])) {
+					if (dirtyStart < 0)
+						dirtyStart = i;
+					continue;
+				}
+				if (i < run.length)
+					numSkippedBlocks.incrementAndGet();
+				if (dirtyStart >= 0) {
+					Page.writeBlocks(run[dirtyStart], Arrays.copyOfRange(
+							pages, dirtyStart, i));
+					dirtyStart = -1;
+				}
+			}
+		} finally {
+			for (Page page : pages)
+				page.close();
+		}
+	}
+
+	/**
+	 * Applies the redo records of the specified block to its page, and
+	 * returns true if the page has been modified.
+	 */
+	private boolean redoPage(BlockId blk, Page page) {
+		// the page already contains the records up to its LSN
+		long pageLsn = page.getLsn();
+		long lastLsn = pageLsn;
+		for (SetValRecord svr : redoRecords.get(blk)) {
+			if (svr.lsn <= pageLsn)
+				continue;
+			page.setVal(svr.offset, svr.newVal);
+			lastLsn = svr.lsn;
+		}
+		if (lastLsn == pageLsn)
+			return false;
+		page.setLsn(lastLsn);
+		return true;
+	}
+}
@@ -0,0 +1,41 @@
+package org.vanilladb.core.server;
+
+import java.io.File;
+
+import org.vanilladb.core.storage.file.FileMgr;
+
+/**
+ * Initializes the database of a test class from scratch.
+ */
+public class ServerInit {
+
+	/**
+	 * Deletes the specified database, if a previous run left it behind, and
+	 * initializes the system with a new one.
+	 * 
+	 * @param dbName
+	 *            the name of the database directory
+	 */
+	public static void init(String dbName) {
+		resetDb(dbName);
+		VanillaDb.init(dbName);
+	}
+
+	/**
+	 * Deletes the directory of the specified database.
+	 * 
+	 * @param dbName
+	 *            the name of the database directory
+	 */
+	public static void resetDb(String dbName) {
+		delete(new File(FileMgr.HOME_DIR, dbName));
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				delete(child);
+		file.delete();
+	}
+}
@@ -0,0 +1,119 @@
+package org.vanilladb.core.storage.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vanilladb.core.server.ServerInit;
+import org.vanilladb.core.server.VanillaDb;
+
+public class FileMgrTest {
+
+	@BeforeClass
+	public static void init() {
+		ServerInit.resetDb("filemgrtest");
+		VanillaDb.initFileMgr("filemgrtest");
+	}
+
+	@Test
+	public void testTempFileIdIsReleased() {
+		String fileName = FileMgr.TMP_FILE_NAME_PREFIX + "filemgrtest";
+		Page page = new Page();
+		page.append(fileName);
+		int id = FileMgr.fileId(fileName);
+		assertEquals(fileName, FileMgr.fileName(id));
+
+		VanillaDb.fileMgr().deleteTempFile(fileName);
+		assertNull(FileMgr.fileName(id));
+
+		// the released ID is reused rather than a new one taken
+		String other = FileMgr.TMP_FILE_NAME_PREFIX + "filemgrtest2";
+		assertEquals(id, FileMgr.fileId(other));
+		assertEquals(other, FileMgr.fileName(id));
+		VanillaDb.fileMgr().deleteTempFile(other);
+	}
+
+	@Test
+	public void testFileIdIsStable() {
+		int id = FileMgr.fileId("filemgrtest.tbl");
+		assertEquals(id, FileMgr.fileId("filemgrtest.tbl"));
+		assertEquals("filemgrtest.tbl", FileMgr.fileName(id));
+	}
+
+	@Test
+	public void testReopensItsOwnFormat() {
+		ServerInit.resetDb("formattest");
+		new FileMgr("formattest");
+		assertFalse(new FileMgr("formattest").isNew());
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testRefusesAnotherFormat() throws IOException {
+		ServerInit.resetDb("formattest");
+		new FileMgr("formattest");
+		Files.write(formatFile("formattest").toPath(),
+				"version=0 blockSize=4096".getBytes("US-ASCII"));
+		new FileMgr("formattest");
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testRefusesAnUnstampedDatabase() {
+		ServerInit.resetDb("formattest");
+		new FileMgr("formattest");
+		assertTrue(formatFile("formattest").delete());
+		new FileMgr("formattest");
+	}
+
+	private File formatFile(String dbName) {
+		return new File(new File(FileMgr.HOME_DIR, dbName),
+				FileMgr.FORMAT_FILE);
+	}
+
+	@Test
+	public void testConcurrentAppendsTakeDistinctBlocks()
+			throws InterruptedException {
+		final String fileName = "filemgrtest_append.tbl";
+		final Set<Long> blocks = Collections
+				.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+		Thread[] appenders = new Thread[4];
+		for (int t = 0; t < appenders.length; t++) {
+			appenders[t] = new Thread() {
+				@Override
+				public void run() {
+					Page page = new Page();
+					for (int i = 0; i < 50; i++)
+						blocks.add(page.append(fileName).number());
+					page.close();
+				}
+			};
+			appenders[t].start();
+		}
+		for (Thread appender : appenders)
+			appender.join();
+		assertEquals(200, blocks.size());
+		assertEquals(200, VanillaDb.fileMgr().size(fileName));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsMappingToMissingDirectory() {
+		ServerInit.resetDb("mappingtest");
+		new FileMgr("mappingtest").mapTableDir("item:"
+				+ (FileMgr.DATA_DIRS.length + 1));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsMalformedMapping() {
+		ServerInit.resetDb("mappingtest");
+		new FileMgr("mappingtest").mapTableDir("item:first");
+	}
+}
@@ -0,0 +1,96 @@
+package org.vanilladb.core.storage.file;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vanilladb.core.server.ServerInit;
+import org.vanilladb.core.server.VanillaDb;
+
+public class IoSchedulerTest {
+	private static final int FILES = 4, BLOCKS = 64, ROUNDS = 5;
+
+	@BeforeClass
+	public static void init() {
+		ServerInit.resetDb("ioschedulertest");
+		VanillaDb.initFileMgr("ioschedulertest");
+	}
+
+	@Test
+	public void testReadsSeeQueuedWrites() {
+		String fileName = "ioschedulertest_read.tbl";
+		Page page = new Page();
+		for (int i = 0; i < BLOCKS; i++)
+			page.append(fileName);
+		IoScheduler scheduler = VanillaDb.fileMgr().ioScheduler();
+		for (int round = 0; round < ROUNDS; round++) {
+			for (int i = 0; i < BLOCKS; i++) {
+				page.setInt(0, round * BLOCKS + i);
+				scheduler.submit(new BlockId(fileName, i), page);
+			}
+			// whether a write is queued, in flight or done, the reads
+			// return its contents
+			assertBlocks(fileName, round);
+		}
+		scheduler.awaitCompletion();
+		assertBlocks(fileName, ROUNDS - 1);
+		page.close();
+	}
+
+	@Test
+	public void testConcurrentSubmitters() throws InterruptedException {
+		final IoScheduler scheduler = VanillaDb.fileMgr().ioScheduler();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] submitters = new Thread[FILES];
+		for (int f = 0; f < FILES; f++) {
+			final String fileName = "ioschedulertest_" + f + ".tbl";
+			submitters[f] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						Page page = new Page();
+						for (int i = 0; i < BLOCKS; i++)
+							page.append(fileName);
+						for (int round = 0; round < ROUNDS; round++)
+							for (int i = 0; i < BLOCKS; i++) {
+								page.setInt(0, round * BLOCKS + i);
+								scheduler.submit(new BlockId(fileName, i),
+										page);
+							}
+						page.close();
+					} catch (Throwable e) {
+						failure.set(e);
+					}
+				}
+			};
+			submitters[f].start();
+		}
+		for (Thread submitter : submitters)
+			submitter.join();
+		if (failure.get() != null)
+			throw new AssertionError(failure.get());
+
+		scheduler.awaitCompletion();
+		for (int f = 0; f < FILES; f++)
+			assertBlocks("ioschedulertest_" + f + ".tbl", ROUNDS - 1);
+	}
+
+	private void assertBlocks(String fileName, int round) {
+		Page[] pages = new Page[BLOCKS / 2];
+		for (int i = 0; i < pages.length; i++)
+			pages[i] = new Page();
+		// half of them one by one, the rest by a scattering read
+		for (int i = 0; i < BLOCKS / 2; i++) {
+			pages[0].read(new BlockId(fileName, i));
+			assertEquals(round * BLOCKS + i, pages[0].getInt(0));
+		}
+		assertEquals(pages.length, Page.readBlocks(new BlockId(fileName,
+				BLOCKS / 2), pages));
+		for (int i = 0; i < pages.length; i++) {
+			assertEquals(round * BLOCKS + BLOCKS / 2 + i, pages[i].getInt(0));
+			pages[i].close();
+		}
+	}
+}
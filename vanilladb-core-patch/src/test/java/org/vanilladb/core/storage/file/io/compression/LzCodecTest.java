@@ -0,0 +1,106 @@
+package org.vanilladb.core.storage.file.io.compression;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LzCodecTest {
+	private static final int SIZE = 4096;
+
+	private LzCodec codec = new LzCodec();
+
+	@Test
+	public void testEmpty() {
+		assertRoundTrip(new byte[0]);
+	}
+
+	@Test
+	public void testShorterThanMatch() {
+		assertRoundTrip(new byte[] { 1, 2, 3 });
+	}
+
+	@Test
+	public void testZeroedBlock() {
+		byte[] src = new byte[SIZE];
+		int len = assertRoundTrip(src);
+		assertTrue("a zeroed block compresses well", len < SIZE / 50);
+	}
+
+	@Test
+	public void testRepeatedRecords() {
+		// like a page of similar records
+		byte[] src = new byte[SIZE];
+		for (int i = 0; i + 16 <= SIZE; i += 16) {
+			src[i] = 1;
+			src[i + 4] = (byte) i;
+			src[i + 5] = (byte) (i >> 8);
+			System.arraycopy("item-name".getBytes(), 0, src, i + 6, 9);
+		}
+		assertTrue(assertRoundTrip(src) < SIZE / 2);
+	}
+
+	@Test
+	public void testLongLiteralsAndMatches() {
+		// runs longer than 15 + 255 bytes need several extra length bytes
+		byte[] src = new byte[SIZE];
+		Random random = new Random(1);
+		byte[] noise = new byte[700];
+		random.nextBytes(noise);
+		System.arraycopy(noise, 0, src, 0, noise.length);
+		Arrays.fill(src, 700, 2000, (byte) 7);
+		System.arraycopy(noise, 0, src, 2000, noise.length);
+		assertRoundTrip(src);
+	}
+
+	@Test
+	public void testRandomData() {
+		Random random = new Random(2);
+		for (int i = 0; i < 20; i++) {
+			byte[] src = new byte[random.nextInt(SIZE) + 1];
+			// a few distinct values make short matches
+			for (int j = 0; j < src.length; j++)
+				src[j] = (byte) random.nextInt(i + 2);
+			assertRoundTrip(src);
+		}
+	}
+
+	@Test
+	public void testIncompressibleDoesNotFit() {
+		byte[] src = new byte[SIZE];
+		new Random(3).nextBytes(src);
+		assertEquals(-1, codec.compress(src, src.length, new byte[SIZE]));
+	}
+
+	@Test
+	public void testCodecIsReusable() {
+		byte[] first = new byte[SIZE];
+		Arrays.fill(first, (byte) 5);
+		assertRoundTrip(first);
+		byte[] second = new byte[SIZE];
+		for (int i = 0; i < SIZE; i++)
+			second[i] = (byte) (i % 13);
+		assertRoundTrip(second);
+	}
+
+	/**
+	 * Compresses and decompresses the source, and returns the compressed
+	 * length.
+	 */
+	private int assertRoundTrip(byte[] src) {
+		// the worst case adds a token and length bytes to the literals
+		byte[] compressed = new byte[src.length + src.length / 255 + 16];
+		int len = codec.compress(src, src.length, compressed);
+		assertTrue(len >= 0);
+
+		byte[] decompressed = new byte[src.length];
+		assertEquals(src.length,
+				LzCodec.decompress(compressed, len, decompressed));
+		assertArrayEquals(src, decompressed);
+		return len;
+	}
+}
@@ -0,0 +1,81 @@
+package org.vanilladb.core.storage.file.io.jaydio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeNotNull;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.smacke.jaydio.DirectIoLib;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vanilladb.core.storage.file.FileMgr;
+import org.vanilladb.core.storage.file.io.IoBuffer;
+
+public class JaydioDirectIoChannelTest {
+	private static final int SIZE = 4096;
+
+	private File file;
+	private JaydioDirectIoChannel channel;
+
+	@BeforeClass
+	public static void checkDirectIo() {
+		File dir = new File(FileMgr.HOME_DIR);
+		dir.mkdirs();
+		// O_DIRECT is not supported by every file system
+		assumeNotNull(DirectIoLib.getLibForPath(dir.getAbsolutePath()));
+	}
+
+	@Before
+	public void openChannel() throws IOException {
+		file = new File(FileMgr.HOME_DIR, "jaydio_test");
+		file.delete();
+		channel = new JaydioDirectIoChannel(file);
+	}
+
+	@After
+	public void closeChannel() throws IOException {
+		channel.close();
+		file.delete();
+	}
+
+	@Test
+	public void testWriteAndReadBack() throws IOException {
+		IoBuffer[] buffers = newBuffers(2);
+		buffers[0].putInt(0, 7);
+		buffers[1].putLong(8, 42L);
+		assertEquals(2 * SIZE, channel.write(buffers, 0));
+		assertEquals(2 * SIZE, channel.size());
+
+		IoBuffer[] read = newBuffers(2);
+		assertEquals(2 * SIZE, channel.read(read, 0));
+		assertEquals(7, read[0].getInt(0));
+		assertEquals(42L, read[1].getLong(8));
+	}
+
+	@Test
+	public void testScatterReadPastEnd() throws IOException {
+		IoBuffer buffer = newBuffers(1)[0];
+		buffer.putInt(0, 7);
+		channel.write(buffer, 0);
+
+		// the read stops at the end of the file
+		IoBuffer[] read = newBuffers(3);
+		assertEquals(SIZE, channel.read(read, 0));
+		assertEquals(7, read[0].getInt(0));
+
+		// nothing can be read from the end of the file on
+		assertEquals(-1, channel.read(newBuffers(2), SIZE));
+		assertEquals(-1, channel.read(newBuffers(1)[0], 2 * SIZE));
+	}
+
+	private IoBuffer[] newBuffers(int count) {
+		IoBuffer[] buffers = new IoBuffer[count];
+		for (int i = 0; i < count; i++)
+			buffers[i] = new JaydioDirectByteBuffer(SIZE);
+		return buffers;
+	}
+}
@@ -0,0 +1,89 @@
+package org.vanilladb.core.storage.log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.vanilladb.core.sql.BigIntConstant;
+import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.DoubleConstant;
+import org.vanilladb.core.sql.IntegerConstant;
+import org.vanilladb.core.sql.VarcharConstant;
+import org.vanilladb.core.storage.file.Page;
+
+public class BasicLogRecordTest {
+
+	@Test
+	public void testIntegers() {
+		assertRoundTrip(new IntegerConstant(0), new IntegerConstant(1),
+				new IntegerConstant(-1), new IntegerConstant(63),
+				new IntegerConstant(-64), new IntegerConstant(64),
+				new IntegerConstant(Integer.MAX_VALUE), new IntegerConstant(
+						Integer.MIN_VALUE));
+	}
+
+	@Test
+	public void testLongs() {
+		assertRoundTrip(new BigIntConstant(0), new BigIntConstant(-1),
+				new BigIntConstant(1L << 40), new BigIntConstant(
+						Long.MAX_VALUE), new BigIntConstant(Long.MIN_VALUE));
+	}
+
+	@Test
+	public void testDoubles() {
+		assertRoundTrip(new DoubleConstant(0), new DoubleConstant(-1.5),
+				new DoubleConstant(Double.MAX_VALUE), new DoubleConstant(
+						Double.MIN_VALUE));
+	}
+
+	@Test
+	public void testStrings() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 300; i++)
+			sb.append((char) ('a' + i % 26));
+		assertRoundTrip(new VarcharConstant(""), new VarcharConstant("item"),
+				new VarcharConstant(sb.toString()));
+	}
+
+	@Test
+	public void testSetValueRecord() {
+		// the layout of a set-value record: op, tx, file, block, offset, old
+		// value, new value
+		assertRoundTrip(new IntegerConstant(java.sql.Types.INTEGER),
+				new BigIntConstant(12345), new VarcharConstant("item.tbl"),
+				new BigIntConstant(67), new IntegerConstant(412),
+				new IntegerConstant(-8), new IntegerConstant(900));
+	}
+
+	@Test
+	public void testSmallNumbersAreCompact() {
+		// a tag and a single byte each
+		assertEquals(2, BasicLogRecord.encode(
+				new Constant[] { new IntegerConstant(-64) }).length);
+		assertEquals(2, BasicLogRecord.encode(
+				new Constant[] { new BigIntConstant(63) }).length);
+		assertEquals(3, BasicLogRecord.encode(
+				new Constant[] { new IntegerConstant(64) }).length);
+	}
+
+	private void assertRoundTrip(Constant... vals) {
+		byte[] bytes = BasicLogRecord.encode(vals);
+		Page page = new Page();
+		try {
+			page.setBytes(100, bytes);
+			BasicLogRecord rec = new BasicLogRecord(page, 100,
+					100 + bytes.length, 42);
+			assertEquals(42, rec.getLsn());
+			for (Constant val : vals) {
+				assertTrue(rec.hasNextVal());
+				Constant read = rec.nextVal(val.getType());
+				assertEquals(val.getType(), read.getType());
+				assertEquals(val, read);
+			}
+			assertFalse(rec.hasNextVal());
+		} finally {
+			page.close();
+		}
+	}
+}
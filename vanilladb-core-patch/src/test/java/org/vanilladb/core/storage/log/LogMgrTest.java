@@ -0,0 +1,216 @@
+package org.vanilladb.core.storage.log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vanilladb.core.server.ServerInit;
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.IntegerConstant;
+import org.vanilladb.core.sql.Type;
+import org.vanilladb.core.sql.VarcharConstant;
+import org.vanilladb.core.storage.file.Page;
+
+public class LogMgrTest {
+	private static final int THREADS = 8, RECORDS_PER_THREAD = 400;
+
+	private static LogMgr logMgr;
+
+	@BeforeClass
+	public static void init() {
+		// a ring of two pages and short segments, so that the appenders wrap
+		// around the ring and switch segments often
+		System.setProperty(LogMgr.class.getName() + ".LOG_BUFFER_PAGES", "2");
+		System.setProperty(LogMgr.class.getName() + ".SEGMENT_BLOCKS", "4");
+		ServerInit.resetDb("logmgrtest");
+		VanillaDb.initFileAndLogMgr("logmgrtest");
+		logMgr = VanillaDb.logMgr();
+	}
+
+	@Before
+	public void startNewLog() {
+		logMgr.removeAndCreateNewLog();
+	}
+
+	@Test
+	public void testConcurrentAppends() throws InterruptedException {
+		final long[][] lsns = new long[THREADS][RECORDS_PER_THREAD];
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] appenders = new Thread[THREADS];
+		for (int t = 0; t < THREADS; t++) {
+			final int thread = t;
+			appenders[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < RECORDS_PER_THREAD; i++)
+							lsns[thread][i] = logMgr.append(record(thread, i,
+									100));
+					} catch (Throwable e) {
+						failure.set(e);
+					}
+				}
+			};
+			appenders[t].start();
+		}
+		for (Thread appender : appenders)
+			appender.join();
+		if (failure.get() != null)
+			throw new AssertionError(failure.get());
+		assertTrue("the ring has wrapped around",
+				logMgr.endLsn() / Page.BLOCK_SIZE > LogMgr.LOG_BUFFER_PAGES);
+
+		// each record is read back once, at the LSN returned for it, and the
+		// records of a thread keep their order
+		int[] nextExpected = new int[THREADS];
+		Arrays.fill(nextExpected, RECORDS_PER_THREAD - 1);
+		LogIterator iter = (LogIterator) logMgr.iterator();
+		try {
+			int count = 0;
+			while (iter.hasNext()) {
+				BasicLogRecord rec = iter.next();
+				int thread = (Integer) rec.nextVal(Type.INTEGER).asJavaVal();
+				int seq = (Integer) rec.nextVal(Type.INTEGER).asJavaVal();
+				assertEquals(nextExpected[thread]--, seq);
+				assertEquals(lsns[thread][seq], rec.getLsn());
+				assertEquals(padding(100), rec.nextVal(Type.VARCHAR)
+						.asJavaVal());
+				count++;
+			}
+			assertEquals(THREADS * RECORDS_PER_THREAD, count);
+		} finally {
+			iter.close();
+		}
+	}
+
+	@Test
+	public void testBatchIsContiguous() {
+		logMgr.append(record(0, 0, 10));
+		long last = logMgr.append(new Constant[][] { record(1, 0, 10),
+				record(1, 1, 10), record(1, 2, 10) });
+		logMgr.append(record(2, 0, 10));
+
+		List<BasicLogRecord> recs = readAll();
+		assertEquals(5, recs.size());
+		assertEquals(last, recs.get(1).getLsn());
+		for (int i = 0; i < 3; i++) {
+			BasicLogRecord rec = recs.get(3 - i);
+			assertEquals(1, rec.nextVal(Type.INTEGER).asJavaVal());
+			assertEquals(i, rec.nextVal(Type.INTEGER).asJavaVal());
+		}
+		// the batch is reserved at once, so it shares a block
+		assertEquals(recs.get(3).getLsn() / Page.BLOCK_SIZE, last
+				/ Page.BLOCK_SIZE);
+	}
+
+	@Test
+	public void testBatchLargerThanBlockIsSplit() {
+		int size = Page.BLOCK_SIZE / 3;
+		long last = logMgr.append(new Constant[][] { record(0, 0, size),
+				record(0, 1, size), record(0, 2, size), record(0, 3, size) });
+
+		List<BasicLogRecord> recs = readAll();
+		assertEquals(4, recs.size());
+		assertEquals(last, recs.get(0).getLsn());
+		for (int i = 0; i < 4; i++) {
+			BasicLogRecord rec = recs.get(3 - i);
+			assertEquals(0, rec.nextVal(Type.INTEGER).asJavaVal());
+			assertEquals(i, rec.nextVal(Type.INTEGER).asJavaVal());
+			assertEquals(padding(size), rec.nextVal(Type.VARCHAR).asJavaVal());
+		}
+		assertTrue("the batch spans blocks", recs.get(0).getLsn()
+				/ Page.BLOCK_SIZE > recs.get(3).getLsn() / Page.BLOCK_SIZE);
+	}
+
+	@Test
+	public void testReadsAcrossSegments() {
+		int count = appendSegments(3);
+		assertTrue("the log spans several segments", VanillaDb.fileMgr()
+				.listLogFiles(LogMgr.LOG_FILE).length > 3);
+
+		List<BasicLogRecord> recs = readAll();
+		assertEquals(count, recs.size());
+		for (int i = 0; i < count; i++)
+			assertEquals(count - 1 - i, recs.get(i).nextVal(Type.INTEGER)
+					.asJavaVal());
+	}
+
+	@Test
+	public void testReadsAfterRecycling() {
+		int count = appendSegments(4);
+		List<BasicLogRecord> recs = readAll();
+		long keepLsn = recs.get(recs.size() / 2).getLsn();
+		logMgr.recycleSegments(keepLsn);
+		long firstLsn = logMgr.firstBlock() * Page.BLOCK_SIZE;
+		assertTrue(firstLsn > 0 && firstLsn <= keepLsn);
+
+		// the log starts at the first kept segment
+		int kept = 0;
+		for (BasicLogRecord rec : recs)
+			if (rec.getLsn() >= firstLsn)
+				kept++;
+		List<BasicLogRecord> after = readAll();
+		assertEquals(kept, after.size());
+		assertEquals(count - kept, after.get(kept - 1).nextVal(Type.INTEGER)
+				.asJavaVal());
+
+		// the recycled files are reused without their old blocks showing up
+		int files = VanillaDb.fileMgr().listLogFiles(LogMgr.LOG_FILE).length;
+		for (int i = 0; i < count; i++)
+			logMgr.append(record(count + i, 0, 100));
+		after = readAll();
+		assertEquals(kept + count, after.size());
+		for (int i = 0; i < after.size(); i++)
+			assertEquals(2 * count - 1 - i, after.get(i).nextVal(Type.INTEGER)
+					.asJavaVal());
+		logMgr.recycleSegments(logMgr.endLsn());
+		assertTrue(VanillaDb.fileMgr().listLogFiles(LogMgr.LOG_FILE).length
+				<= files);
+	}
+
+	/**
+	 * Appends records numbered from 0 until the log spans more than the
+	 * specified number of segments, and returns the number of records.
+	 */
+	private int appendSegments(int segments) {
+		long endBlk = logMgr.firstBlock() + segments * LogMgr.SEGMENT_BLOCKS;
+		int count = 0;
+		while (logMgr.endLsn() / Page.BLOCK_SIZE <= endBlk)
+			logMgr.append(record(count++, 0, 100));
+		return count;
+	}
+
+	static Constant[] record(int thread, int seq, int size) {
+		return new Constant[] { new IntegerConstant(thread),
+				new IntegerConstant(seq), new VarcharConstant(padding(size)) };
+	}
+
+	static String padding(int size) {
+		char[] chars = new char[size];
+		Arrays.fill(chars, 'x');
+		return new String(chars);
+	}
+
+	/**
+	 * Returns the records of the log, the most recent first.
+	 */
+	private List<BasicLogRecord> readAll() {
+		List<BasicLogRecord> recs = new ArrayList<BasicLogRecord>();
+		LogIterator iter = (LogIterator) logMgr.iterator();
+		try {
+			while (iter.hasNext())
+				recs.add(iter.next());
+		} finally {
+			iter.close();
+		}
+		return recs;
+	}
+}
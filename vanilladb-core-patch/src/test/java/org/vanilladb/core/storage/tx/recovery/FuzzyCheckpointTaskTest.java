@@ -0,0 +1,126 @@
+package org.vanilladb.core.storage.tx.recovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vanilladb.core.server.ServerInit;
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.sql.IntegerConstant;
+import org.vanilladb.core.sql.Type;
+import org.vanilladb.core.storage.buffer.Buffer;
+import org.vanilladb.core.storage.buffer.PageFormatter;
+import org.vanilladb.core.storage.file.Page;
+import org.vanilladb.core.storage.log.BasicLogRecord;
+import org.vanilladb.core.storage.log.LogIterator;
+import org.vanilladb.core.storage.tx.Transaction;
+
+public class FuzzyCheckpointTaskTest {
+	private static final PageFormatter EMPTY = new PageFormatter() {
+		@Override
+		public void format(Page p) {
+		}
+	};
+
+	private static FuzzyCheckpointTask task;
+
+	@BeforeClass
+	public static void init() {
+		ServerInit.init("fuzzytest");
+		task = new FuzzyCheckpointTask();
+	}
+
+	@Test
+	public void testRedoLsnCoversActiveTransactions() {
+		Transaction tx = newTx();
+		long startLsn = VanillaDb.logMgr().endLsn();
+		Buffer buff = modify(tx);
+		assertTrue(VanillaDb.bufferMgr().minRecLsn() >= 0);
+
+		task.createCheckpoint();
+		CheckpointRecord rec = lastCheckpoint();
+		assertTrue(rec.txs.contains(tx.getTransactionNumber()));
+		assertTrue(rec.redoLsn <= startLsn);
+
+		VanillaDb.bufferMgr().unpin(tx.getTransactionNumber(), buff);
+		tx.rollback();
+	}
+
+	@Test
+	public void testFlushesBuffersDirtySinceThePreviousCheckpoint() {
+		Transaction tx = newTx();
+		Buffer buff = modify(tx);
+		VanillaDb.bufferMgr().unpin(tx.getTransactionNumber(), buff);
+		task.createCheckpoint();
+		assertTrue(VanillaDb.bufferMgr().minRecLsn() >= 0);
+
+		// the next checkpoint writes the page, even if it stays in the pool
+		task.createCheckpoint();
+		assertEquals(-1, VanillaDb.bufferMgr().minRecLsn());
+		tx.rollback();
+	}
+
+	@Test
+	public void testRedoLsnAdvances() {
+		VanillaDb.bufferMgr().flushAll();
+		task.createCheckpoint();
+		CheckpointRecord first = lastCheckpoint();
+		assertTrue(first.txs.isEmpty());
+
+		Transaction tx = newTx();
+		Buffer buff = modify(tx);
+		VanillaDb.bufferMgr().unpin(tx.getTransactionNumber(), buff);
+		tx.commit();
+
+		// nothing before the previous checkpoint is needed any more
+		task.createCheckpoint();
+		assertTrue(lastCheckpoint().redoLsn > first.lsn);
+	}
+
+	private static Transaction newTx() {
+		return VanillaDb.txMgr().transaction(
+				Connection.TRANSACTION_SERIALIZABLE, false);
+	}
+
+	/**
+	 * Makes a logged modification to a new block on behalf of the specified
+	 * transaction, and returns the pinned buffer.
+	 */
+	private static Buffer modify(Transaction tx) {
+		long txNum = tx.getTransactionNumber();
+		Buffer buff = VanillaDb.bufferMgr().pinNew("fuzzytest.tbl", EMPTY,
+				txNum);
+		IntegerConstant val = new IntegerConstant(7);
+		long lsn = tx.recoveryMgr().logSetVal(buff, 100, val);
+		buff.setVal(100, val, txNum, lsn);
+		return buff;
+	}
+
+	private static class CheckpointRecord {
+		long lsn, redoLsn;
+		Set<Long> txs = new HashSet<Long>();
+	}
+
+	private static CheckpointRecord lastCheckpoint() {
+		LogIterator iter = (LogIterator) VanillaDb.logMgr().iterator();
+		try {
+			BasicLogRecord rec = iter.next();
+			assertEquals(LogRecord.OP_CHECKPOINT, rec.nextVal(Type.INTEGER)
+					.asJavaVal());
+			CheckpointRecord ckpt = new CheckpointRecord();
+			ckpt.lsn = rec.getLsn();
+			int count = (Integer) rec.nextVal(Type.INTEGER).asJavaVal();
+			for (int i = 0; i < count; i++)
+				ckpt.txs.add((Long) rec.nextVal(Type.BIGINT).asJavaVal());
+			ckpt.redoLsn = (Long) rec.nextVal(Type.BIGINT).asJavaVal();
+			return ckpt;
+		} finally {
+			iter.close();
+		}
+	}
+}
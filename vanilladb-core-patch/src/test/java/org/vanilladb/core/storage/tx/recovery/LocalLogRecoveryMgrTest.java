@@ -0,0 +1,66 @@
+package org.vanilladb.core.storage.tx.recovery;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Connection;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vanilladb.core.server.ServerInit;
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.sql.IntegerConstant;
+import org.vanilladb.core.storage.buffer.Buffer;
+import org.vanilladb.core.storage.buffer.PageFormatter;
+import org.vanilladb.core.storage.file.FileMgr;
+import org.vanilladb.core.storage.file.Page;
+import org.vanilladb.core.storage.log.LogMgr;
+import org.vanilladb.core.storage.tx.Transaction;
+
+public class LocalLogRecoveryMgrTest {
+	private static final PageFormatter EMPTY = new PageFormatter() {
+		@Override
+		public void format(Page p) {
+		}
+	};
+
+	@BeforeClass
+	public static void init() {
+		ServerInit.init("locallogtest");
+	}
+
+	@AfterClass
+	public static void enableLogging() {
+		RecoveryMgr.logSetVal(true);
+	}
+
+	@Test
+	public void testHonorsTheSwitchOfRecoveryMgr() {
+		Transaction tx = VanillaDb.txMgr().transaction(
+				Connection.TRANSACTION_SERIALIZABLE, false);
+		long txNum = tx.getTransactionNumber();
+		LocalLogRecoveryMgr recoveryMgr = new LocalLogRecoveryMgr(txNum, false);
+		Buffer buff = VanillaDb.bufferMgr().pinNew("locallogtest.tbl",
+				EMPTY, txNum);
+
+		RecoveryMgr.logSetVal(false);
+		assertEquals(-1, recoveryMgr.logSetVal(buff, 0, new IntegerConstant(1)));
+		RecoveryMgr.logSetVal(true);
+		assertEquals(LogMgr.LOCAL_LSN,
+				recoveryMgr.logSetVal(buff, 0, new IntegerConstant(1)));
+		tx.rollback();
+	}
+
+	@Test
+	public void testSkipsTemporaryFiles() {
+		Transaction tx = VanillaDb.txMgr().transaction(
+				Connection.TRANSACTION_SERIALIZABLE, false);
+		long txNum = tx.getTransactionNumber();
+		LocalLogRecoveryMgr recoveryMgr = new LocalLogRecoveryMgr(txNum, false);
+		Buffer buff = VanillaDb.bufferMgr().pinNew(
+				FileMgr.TMP_FILE_NAME_PREFIX + "locallogtest", EMPTY, txNum);
+
+		assertEquals(-1, recoveryMgr.logSetVal(buff, 0, new IntegerConstant(1)));
+		tx.rollback();
+	}
+}
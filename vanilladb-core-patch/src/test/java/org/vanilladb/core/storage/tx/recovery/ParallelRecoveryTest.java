@@ -0,0 +1,129 @@
+package org.vanilladb.core.storage.tx.recovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.vanilladb.core.server.ServerInit;
+import org.vanilladb.core.storage.buffer.BufferMgr;
+import org.vanilladb.core.storage.file.FileMgr;
+
+/**
+ * Checks that {@link ParallelRecovery} leaves a crashed database in the same
+ * state as {@link RecoveryMgr#recover}, and that it redoes the commits that
+ * were not forced to disk. As the properties are read once per JVM, the
+ * workload and each recovery run in a JVM of their own.
+ */
+public class ParallelRecoveryTest {
+	private static final String DB = "recoverytest",
+			NO_FORCE_DB = "recoverytest_noforce";
+
+	@BeforeClass
+	public static void crash() throws Exception {
+		ServerInit.resetDb(DB);
+		List<String> out = run("crash", DB, 1, true);
+		assertEquals("CRASHED", out.get(out.size() - 1));
+		ServerInit.resetDb(NO_FORCE_DB);
+		out = run("crash", NO_FORCE_DB, 1, false);
+		assertEquals("CRASHED", out.get(out.size() - 1));
+	}
+
+	@Test
+	public void testSameStateAsSerialRecovery() throws Exception {
+		copyDb(DB, DB + "_serial");
+		copyDb(DB, DB + "_parallel");
+		List<String> serial = rows(run("dump", DB + "_serial", 1, true));
+		List<String> parallel = rows(run("dump", DB + "_parallel", 4, true));
+
+		assertRecovered(serial);
+		assertEquals(serial, parallel);
+	}
+
+	@Test
+	public void testRedoesUnforcedCommits() throws Exception {
+		copyDb(NO_FORCE_DB, NO_FORCE_DB + "_serial");
+		copyDb(NO_FORCE_DB, NO_FORCE_DB + "_parallel");
+		List<String> serial = rows(run("dump", NO_FORCE_DB + "_serial", 1,
+				false));
+		List<String> parallel = rows(run("dump", NO_FORCE_DB + "_parallel",
+				4, false));
+
+		assertRecovered(serial);
+		assertEquals(serial, parallel);
+	}
+
+	private static void assertRecovered(List<String> rows) {
+		assertEquals(RecoveryWorkload.ROWS, rows.size());
+		// the uncommitted update is undone, the committed ones are kept
+		for (String row : rows)
+			assertFalse(row, row.contains(" x ") || row.contains(" r "));
+		assertEquals("ROW 37 u1 1000.0", rows.get(37));
+		assertEquals("ROW 1041 n1041 8.25", rows.get(1041));
+		assertEquals("ROW 1500 a 15.75", rows.get(1500));
+	}
+
+	private static List<String> rows(List<String> out) {
+		List<String> rows = new ArrayList<String>();
+		for (String line : out)
+			if (line.startsWith("ROW "))
+				rows.add(line);
+		return rows;
+	}
+
+	/**
+	 * Runs the workload in a new JVM with the specified number of redo
+	 * workers and commit policy, and returns its output.
+	 */
+	private static List<String> run(String mode, String dbName, int workers,
+			boolean isForced) throws IOException, InterruptedException {
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(new File(System.getProperty("java.home"), "bin/java")
+				.getPath());
+		cmd.add("-cp");
+		cmd.add(System.getProperty("java.class.path"));
+		for (String prop : new String[] { "org.vanilladb.core.config.file",
+				"java.util.logging.config.file" })
+			if (System.getProperty(prop) != null)
+				cmd.add("-D" + prop + "=" + System.getProperty(prop));
+		cmd.add("-D" + ParallelRecovery.class.getName() + ".REDO_WORKERS="
+				+ workers);
+		cmd.add("-D" + BufferMgr.class.getName() + ".FORCE_ON_COMMIT="
+				+ isForced);
+		cmd.add(RecoveryWorkload.class.getName());
+		cmd.add(mode);
+		cmd.add(dbName);
+
+		Process process = new ProcessBuilder(cmd).redirectErrorStream(true)
+				.start();
+		List<String> out = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				process.getInputStream(), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null)
+				out.add(line);
+		} finally {
+			reader.close();
+		}
+		assertEquals(out.toString(), 0, process.waitFor());
+		return out;
+	}
+
+	private static void copyDb(String from, String to) throws IOException {
+		ServerInit.resetDb(to);
+		File src = new File(FileMgr.HOME_DIR, from);
+		File dst = new File(FileMgr.HOME_DIR, to);
+		dst.mkdirs();
+		for (File file : src.listFiles())
+			Files.copy(file.toPath(), new File(dst, file.getName()).toPath());
+	}
+}
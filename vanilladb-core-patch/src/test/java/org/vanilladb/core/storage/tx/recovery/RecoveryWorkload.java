@@ -0,0 +1,105 @@
+package org.vanilladb.core.storage.tx.recovery;
+
+import java.sql.Connection;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.vanilladb.core.query.algebra.Scan;
+import org.vanilladb.core.query.planner.Planner;
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.storage.tx.Transaction;
+
+/**
+ * The workload of the recovery tests, run in a JVM of its own. Mode "crash"
+ * loads a database and halts with transactions in every state, and mode
+ * "dump" recovers the database and prints its contents.
+ */
+public class RecoveryWorkload {
+	static final int ROWS = 2000;
+
+	public static void main(String[] args) {
+		String mode = args[0], dbName = args[1];
+		int status = 1;
+		try {
+			VanillaDb.init(dbName);
+			if (mode.equals("crash"))
+				crash();
+			else
+				dump();
+			status = 0;
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		} finally {
+			// skip the shutdown of the server, as a crash would
+			Runtime.getRuntime().halt(status);
+		}
+	}
+
+	private static void crash() {
+		FuzzyCheckpointTask checkpoint = new FuzzyCheckpointTask();
+		Transaction tx = newTx(false);
+		Planner planner = VanillaDb.newPlanner();
+		planner.executeUpdate(
+				"create table t (id int, name varchar(20), v double)", tx);
+		for (int i = 0; i < ROWS; i++)
+			planner.executeUpdate("insert into t (id, name, v) values (" + i
+					+ ", 'n" + i + "', " + i + ".5)", tx);
+		tx.commit();
+
+		// committed updates
+		for (int k = 0; k < 50; k++)
+			update("v = " + (k * 1000) + ".0, name = 'u" + k + "'", "id = "
+					+ (k * 37), true);
+		// a rolled back update
+		update("v = -5.0, name = 'r'", "id < 10", false);
+
+		// a fuzzy checkpoint taken while a transaction is active
+		Transaction active = newTx(false);
+		VanillaDb.newPlanner().executeUpdate(
+				"update t set v = 15.75, name = 'a' where id = 1500", active);
+		checkpoint.createCheckpoint();
+		active.commit();
+
+		// committed updates after the checkpoint
+		for (int k = 0; k < 20; k++)
+			update("v = " + (k + 7) + ".25", "id = " + (1000 + k * 41), true);
+
+		// an update that reaches the disk but never commits, issued last as
+		// it keeps its locks until the crash
+		Transaction loser = newTx(false);
+		VanillaDb.newPlanner().executeUpdate(
+				"update t set v = -1.0, name = 'x' where id < 100", loser);
+		VanillaDb.bufferMgr().flushAll(loser.getTransactionNumber());
+		System.out.println("CRASHED");
+	}
+
+	private static void dump() {
+		Transaction tx = newTx(true);
+		Scan s = VanillaDb.newPlanner()
+				.createQueryPlan("select id, name, v from t", tx).open();
+		Map<Integer, String> rows = new TreeMap<Integer, String>();
+		s.beforeFirst();
+		while (s.next())
+			rows.put((Integer) s.getVal("id").asJavaVal(), s.getVal("name")
+					.asJavaVal() + " " + s.getVal("v").asJavaVal());
+		s.close();
+		tx.commit();
+		for (Map.Entry<Integer, String> row : rows.entrySet())
+			System.out.println("ROW " + row.getKey() + " " + row.getValue());
+	}
+
+	private static void update(String set, String where, boolean commit) {
+		Transaction tx = newTx(false);
+		VanillaDb.newPlanner().executeUpdate(
+				"update t set " + set + " where " + where, tx);
+		if (commit)
+			tx.commit();
+		else
+			tx.rollback();
+	}
+
+	private static Transaction newTx(boolean isReadOnly) {
+		return VanillaDb.txMgr().transaction(
+				Connection.TRANSACTION_SERIALIZABLE, isReadOnly);
+	}
+}